@@ -61,7 +61,6 @@ import org.apache.crunch.types.writable.Writables;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
@@ -70,6 +69,8 @@ import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.solr.crunch.CrunchIndexerToolOptions.PipelineType;
+import org.apache.solr.hadoop.InputFileManifest;
+import org.apache.solr.hadoop.ParallelFileTreeWalker;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.kitesdk.morphline.api.TypedSettings;
@@ -244,7 +245,7 @@ public class CrunchIndexerTool extends Configured implements Tool {
       LOG.info("Using these parameters: numFiles: {}", numFiles);
       List<Path> filePaths = new ArrayList<Path>();
       for (String file : listFiles(tmpFs, tmpFile)) {
-        filePaths.add(new Path(file));
+        filePaths.add(new Path(InputFileManifest.getPath(file)));
       }
       if (opts.inputFileFormat.isAssignableFrom(AvroInputFormat.class)) { 
         if (opts.inputFileReaderSchema == null) {
@@ -346,7 +347,10 @@ public class CrunchIndexerTool extends Configured implements Tool {
               return !(path.getName().startsWith(".") || path.getName().startsWith("_")); 
             }
           };
-          numFiles += addInputFilesRecursively(inputFile, writer, inputFileFs, pathFilter);
+          int numThreads = conf.getInt(ParallelFileTreeWalker.NUM_THREADS, ParallelFileTreeWalker.DEFAULT_NUM_THREADS);
+          boolean isWritingFileStatus = conf.getBoolean(InputFileManifest.IS_WRITING_FILE_STATUS, true);
+          numFiles += new ParallelFileTreeWalker(inputFileFs, pathFilter, numThreads, isWritingFileStatus)
+              .walk(inputFile, writer);
         }
       }
 
@@ -379,24 +383,6 @@ public class CrunchIndexerTool extends Configured implements Tool {
     return numFiles;
   }
   
-  /**
-   * Add the specified file to the input set, if path is a directory then
-   * add the files contained therein.
-   */
-  private long addInputFilesRecursively(Path path, Writer writer, FileSystem fs, PathFilter pathFilter) throws IOException {
-    long numFiles = 0;
-    for (FileStatus stat : fs.listStatus(path, pathFilter)) {
-      LOG.debug("Adding path {}", stat.getPath());
-      if (stat.isDirectory()) {
-        numFiles += addInputFilesRecursively(stat.getPath(), writer, fs, pathFilter);
-      } else {
-        writer.write(stat.getPath().toString() + "\n");
-        numFiles++;
-      }
-    }
-    return numFiles;
-  }
-  
   private List<String> listFiles(FileSystem fs, Path fullInputList) throws IOException {    
     List<String> lines = new ArrayList<String>();
     BufferedReader reader = new BufferedReader(
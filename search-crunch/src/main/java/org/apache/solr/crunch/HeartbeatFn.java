@@ -22,7 +22,7 @@ import org.apache.crunch.Emitter;
 
 /**
  * A DoFn that periodically sends progress heartbeats to the job tracker in order to avoid timeouts
- * for long-running tasks.
+ * for long-running tasks. The number of items per second passing through is reported in the task status.
  */
 public final class HeartbeatFn<T> extends DoFn<T,T> {
 
@@ -38,6 +38,7 @@ public final class HeartbeatFn<T> extends DoFn<T,T> {
     heartBeater.needHeartBeat();
     try {
       emitter.emit(item);
+      heartBeater.addThroughput(1, 0);
     } finally {
       heartBeater.cancelHeartBeat();
     }
@@ -18,6 +18,7 @@ package org.apache.solr.crunch;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
@@ -33,6 +34,7 @@ import org.apache.crunch.CrunchRuntimeException;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.solr.hadoop.InputFileManifest;
 import org.kitesdk.morphline.api.Command;
 import org.kitesdk.morphline.api.MorphlineContext;
 import org.kitesdk.morphline.api.Record;
@@ -172,12 +174,21 @@ public class MorphlineFn<S,T> extends DoFn<S,T> {
         record = new Record();
         record.put(Fields.ATTACHMENT_BODY, item);
       } else {
-        PathParts parts = new PathParts(item.toString(), getConfiguration());
+        // use the file status carried by the line, if any, instead of asking the NameNode
+        String line = item.toString();
+        PathParts parts = new PathParts(
+            InputFileManifest.getPath(line), getConfiguration(), InputFileManifest.getFileStatus(line));
         record = getRecord(parts);
         if (record == null) {
           return; // ignore
         }
-        in = new BufferedInputStream(parts.getFileSystem().open(parts.getUploadPath()));
+        try {
+          in = new BufferedInputStream(parts.getFileSystem().open(parts.getUploadPath()));
+        } catch (FileNotFoundException e) { // the status came from the list of files to index
+          LOG.warn("Ignoring file that somehow has become unavailable since the job was submitted: {}",
+              parts.getUploadURL());
+          return;
+        }
         record.put(Fields.ATTACHMENT_BODY, in);
       }
       try {
@@ -38,6 +38,13 @@ final class PathParts {
   private FileStatus stats;
 
   public PathParts(String uploadURL, Configuration conf) throws IOException {
+    this(uploadURL, conf, null);
+  }
+  
+  /**
+   * @param stats the already known status of the file, or null to look it up lazily
+   */
+  public PathParts(String uploadURL, Configuration conf, FileStatus stats) throws IOException {
     if (uploadURL == null) {
       throw new IllegalArgumentException("Path must not be null: " + uploadURL);    
     }
@@ -46,6 +53,7 @@ final class PathParts {
       throw new IllegalArgumentException("Configuration must not be null: " + uploadURL);    
     }
     this.conf = conf;
+    this.stats = stats;
     URI uri = stringToUri(uploadURL);
     this.fs = FileSystem.get(uri, conf);
     if (fs == null) {
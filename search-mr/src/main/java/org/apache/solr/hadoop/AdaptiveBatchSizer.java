@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+/**
+ * Adapts the number of documents per batch of a {@link SolrRecordWriter} to the corpus at hand.
+ * 
+ * A batch is flushed once it holds either {@link #getMaxDocs()} documents or the target number of
+ * bytes, whichever comes first, so batches of large documents are bounded by bytes. The max number
+ * of documents in turn follows the observed add latency of the batches: it shrinks in proportion to
+ * the overshoot if a batch takes longer than the target latency, and it grows by half if a batch
+ * that was cut by document count took less than half the target latency. Thus tiny documents end
+ * up in large batches and huge documents in small ones.
+ */
+final class AdaptiveBatchSizer {
+  
+  private final int minDocs;
+  private final int maxDocsLimit;
+  private final long targetBytes;
+  private final long targetLatencyMillis;
+  private volatile int maxDocs;
+
+  public AdaptiveBatchSizer(int initialDocs, int maxDocsLimit, long targetBytes, long targetLatencyMillis) {
+    this.minDocs = 1;
+    this.maxDocsLimit = Math.max(minDocs, maxDocsLimit);
+    this.targetBytes = Math.max(1, targetBytes);
+    this.targetLatencyMillis = Math.max(1, targetLatencyMillis);
+    this.maxDocs = clamp(initialDocs);
+  }
+  
+  /** Returns the current max number of documents per batch */
+  public int getMaxDocs() {
+    return maxDocs;
+  }
+  
+  /** Returns true if a batch with the given number of documents and (approximate) bytes is to be flushed */
+  public boolean isFull(int numDocs, long numBytes) {
+    return numDocs >= maxDocs || numBytes >= targetBytes;
+  }
+  
+  /** Adapts the max number of documents per batch to the latency of a batch that has been added */
+  public synchronized void onBatchWritten(int numDocs, long elapsedMillis) {
+    int docs = maxDocs;
+    if (elapsedMillis > targetLatencyMillis) {
+      double factor = Math.max(0.5, targetLatencyMillis / (double) elapsedMillis); // shrink by at most half
+      docs = (int) Math.min(docs, numDocs * factor);
+    } else if (elapsedMillis < targetLatencyMillis / 2 && numDocs >= docs) {
+      docs = docs + Math.max(1, docs / 2);
+    }
+    maxDocs = clamp(docs);
+  }
+  
+  private int clamp(int docs) {
+    return Math.max(minDocs, Math.min(maxDocsLimit, docs));
+  }
+  
+}
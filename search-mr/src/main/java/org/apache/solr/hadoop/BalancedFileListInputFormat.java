@@ -0,0 +1,435 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * An InputFormat for a list of files to index (one file per line) that assigns the listed files to
+ * splits such that each split contains about the same number of bytes, rather than the same number
+ * of files like NLineInputFormat does.
+ * 
+ * A line can carry the length of its file, in the format of {@link InputFileManifest}, as written
+ * by MapReduceIndexerTool when listing input dirs; the length of other files is looked up via the
+ * FileSystem. Files are bin packed largest first into the currently smallest of
+ * {@link #NUM_SPLITS} splits. Files of at least {@link #ISOLATION_THRESHOLD} bytes are isolated
+ * into splits of their own. The mapper receives the line of each file as listed.
+ * 
+ * If {@link #IS_LOCALITY_AWARE} is enabled, the block locations of each file are looked up as well,
+ * and files are grouped by the datanode that holds most of their bytes. Each such group gets a
+ * number of splits proportional to its bytes, and each split reports the hosts that hold most of
+ * its bytes as its locations, such that the scheduler can run mappers next to their data.
+ */
+public class BalancedFileListInputFormat extends FileInputFormat<LongWritable, Text> {
+
+  /** Number of splits to create */
+  public static final String NUM_SPLITS = BalancedFileListInputFormat.class.getName() + ".numSplits";
+  
+  /**
+   * Files with at least this many bytes get a split of their own; zero or less means the average
+   * number of bytes per split
+   */
+  public static final String ISOLATION_THRESHOLD = BalancedFileListInputFormat.class.getName() + ".isolationThreshold";
+  
+  /** If true, group files into splits by the datanodes that hold their bytes */
+  public static final String IS_LOCALITY_AWARE = BalancedFileListInputFormat.class.getName() + ".localityAware";
+  
+  /** Max number of hosts to report as locations of a split */
+  static final int MAX_LOCATIONS = 3;
+  
+  /** Number of threads to look up the length (and locations) of files */
+  public static final String NUM_THREADS = BalancedFileListInputFormat.class.getName() + ".numThreads";
+  
+  private static final Logger LOG = LoggerFactory.getLogger(BalancedFileListInputFormat.class);
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    List<FileEntry> entries = new ArrayList<FileEntry>();
+    for (FileStatus listFile : listStatus(job)) {
+      FileSystem fs = listFile.getPath().getFileSystem(conf);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(listFile.getPath()), Charsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.length() > 0) {
+            FileEntry entry = new FileEntry(InputFileManifest.getPath(line), InputFileManifest.getLength(line));
+            entry.line = line;
+            entries.add(entry);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    boolean isLocalityAware = conf.getBoolean(IS_LOCALITY_AWARE, false);
+    lookupFileMetadata(entries, isLocalityAware, conf);
+    
+    int numSplits = conf.getInt(NUM_SPLITS, Math.max(1, entries.size()));
+    long isolationThreshold = conf.getLong(ISOLATION_THRESHOLD, 0);
+    List<InputSplit> splits = new ArrayList<InputSplit>(isLocalityAware 
+        ? createLocalityAwareSplits(entries, numSplits, isolationThreshold) 
+        : createSplits(entries, numSplits, isolationThreshold));
+    LOG.info("Assigned {} files to {} splits, localityAware: {}", new Object[] {entries.size(), splits.size(), isLocalityAware});
+    return splits;
+  }
+  
+  private void lookupFileMetadata(List<FileEntry> entries, final boolean isLocalityAware, final Configuration conf) 
+      throws IOException {
+    
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, conf.getInt(NUM_THREADS, 20)));
+    try {
+      for (final FileEntry entry : entries) {
+        if (entry.length < 0 || isLocalityAware) {
+          futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                Path path = new Path(entry.path);
+                FileSystem fs = path.getFileSystem(conf);
+                FileStatus status = fs.getFileStatus(path);
+                entry.length = status.getLen();
+                if (isLocalityAware) {
+                  Map<String, Long> hostBytes = new HashMap<String, Long>();
+                  for (BlockLocation block : fs.getFileBlockLocations(status, 0, status.getLen())) {
+                    for (String host : block.getHosts()) {
+                      Long bytes = hostBytes.get(host);
+                      hostBytes.put(host, (bytes == null ? 0 : bytes.longValue()) + block.getLength());
+                    }
+                  }
+                  entry.hostBytes = hostBytes;
+                }
+              } catch (IOException e) {
+                LOG.warn("Cannot determine length of file, assuming zero: " + entry.path, e);
+                entry.length = 0; // MorphlineMapRunner will report the missing file
+              }
+            }
+          }));
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while looking up file lengths", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Cannot look up file lengths", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  /**
+   * Groups the given files by the host that holds most of their bytes, and bin packs each group into
+   * a number of splits proportional to the bytes of the group
+   */
+  static List<FileListSplit> createLocalityAwareSplits(List<FileEntry> entries, int numSplits, long isolationThreshold) {
+    long totalLength = 0;
+    Map<String, List<FileEntry>> groups = new TreeMap<String, List<FileEntry>>(); // deterministic order
+    Map<String, Long> groupLengths = new HashMap<String, Long>();
+    for (FileEntry entry : entries) {
+      String host = entry.getPrimaryHost();
+      List<FileEntry> group = groups.get(host);
+      if (group == null) {
+        group = new ArrayList<FileEntry>();
+        groups.put(host, group);
+        groupLengths.put(host, 0L);
+      }
+      group.add(entry);
+      groupLengths.put(host, groupLengths.get(host) + entry.length);
+      totalLength += entry.length;
+    }
+    
+    if (isolationThreshold <= 0) {
+      isolationThreshold = Math.max(1, (totalLength + numSplits - 1) / Math.max(1, numSplits));
+    }
+    List<FileListSplit> splits = new ArrayList<FileListSplit>();
+    for (Map.Entry<String, List<FileEntry>> group : groups.entrySet()) {
+      long groupLength = groupLengths.get(group.getKey());
+      int numGroupSplits = totalLength == 0 
+          ? 1 
+          : (int) Math.max(1, Math.round((double) numSplits * groupLength / totalLength));
+      for (FileListSplit split : createSplits(group.getValue(), numGroupSplits, isolationThreshold)) {
+        split.setLocations(split.getTopHosts(MAX_LOCATIONS));
+        splits.add(split);
+      }
+    }
+    return splits;
+  }
+  
+  /** Bin packs the given files into the given number of splits */
+  static List<FileListSplit> createSplits(List<FileEntry> entries, int numSplits, long isolationThreshold) {
+    long totalLength = 0;
+    for (FileEntry entry : entries) {
+      totalLength += entry.length;
+    }
+    numSplits = Math.max(1, Math.min(numSplits, entries.size()));
+    if (isolationThreshold <= 0) {
+      isolationThreshold = Math.max(1, (totalLength + numSplits - 1) / numSplits);
+    }
+    
+    List<FileListSplit> splits = new ArrayList<FileListSplit>();
+    List<FileEntry> remaining = new ArrayList<FileEntry>();
+    for (FileEntry entry : entries) {
+      if (entry.length >= isolationThreshold) {
+        FileListSplit split = new FileListSplit();
+        split.add(entry);
+        splits.add(split);
+      } else {
+        remaining.add(entry);
+      }
+    }
+    
+    if (remaining.size() > 0) {
+      // largest first into the currently smallest split ("LPT" scheduling)
+      Collections.sort(remaining, new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry e1, FileEntry e2) {
+          return e1.length > e2.length ? -1 : (e1.length < e2.length ? 1 : 0);
+        }
+      });
+      int numBins = Math.max(1, Math.min(remaining.size(), numSplits - splits.size()));
+      PriorityQueue<FileListSplit> bins = new PriorityQueue<FileListSplit>(numBins, new Comparator<FileListSplit>() {
+        @Override
+        public int compare(FileListSplit s1, FileListSplit s2) {
+          return s1.length < s2.length ? -1 : (s1.length > s2.length ? 1 : 0);
+        }
+      });
+      for (int i = 0; i < numBins; i++) {
+        bins.add(new FileListSplit());
+      }
+      for (FileEntry entry : remaining) {
+        FileListSplit bin = bins.poll();
+        bin.add(entry);
+        bins.add(bin);
+      }
+      splits.addAll(bins);
+    }
+    return splits;
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    return new FileListRecordReader();
+  }
+
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** A listed file, its length and, optionally, the number of its bytes stored on each host */
+  static final class FileEntry {
+    
+    final String path;
+    String line; // as listed, i.e. including the metadata, if any
+    volatile long length;
+    volatile Map<String, Long> hostBytes;
+    
+    FileEntry(String path, long length) {
+      this.path = path;
+      this.line = path;
+      this.length = length;
+    }
+    
+    /** Returns the host that holds most bytes of this file, or the empty string if unknown */
+    String getPrimaryHost() {
+      String primaryHost = "";
+      long max = -1;
+      if (hostBytes != null) {
+        for (Map.Entry<String, Long> entry : hostBytes.entrySet()) {
+          if (entry.getValue() > max || (entry.getValue() == max && entry.getKey().compareTo(primaryHost) < 0)) {
+            primaryHost = entry.getKey();
+            max = entry.getValue();
+          }
+        }
+      }
+      return primaryHost;
+    }
+  }
+  
+  
+  /** A split that consists of a list of files */
+  public static final class FileListSplit extends InputSplit implements Writable {
+    
+    private List<String> paths = new ArrayList<String>(); // the lines that describe the files
+    private long length = 0;
+    private String[] locations = new String[0];
+    private Map<String, Long> hostBytes; // only needed while creating splits
+    
+    public FileListSplit() {}
+    
+    void add(FileEntry entry) {
+      paths.add(entry.line);
+      length += entry.length;
+      if (entry.hostBytes != null) {
+        if (hostBytes == null) {
+          hostBytes = new HashMap<String, Long>();
+        }
+        for (Map.Entry<String, Long> e : entry.hostBytes.entrySet()) {
+          Long bytes = hostBytes.get(e.getKey());
+          hostBytes.put(e.getKey(), (bytes == null ? 0 : bytes.longValue()) + e.getValue());
+        }
+      }
+    }
+    
+    /** Returns the hosts that hold most bytes of the files of this split, most bytes first */
+    String[] getTopHosts(int maxHosts) {
+      if (hostBytes == null) {
+        return new String[0];
+      }
+      List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(hostBytes.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+          int cmp = e2.getValue().compareTo(e1.getValue());
+          return cmp != 0 ? cmp : e1.getKey().compareTo(e2.getKey());
+        }
+      });
+      String[] hosts = new String[Math.min(maxHosts, entries.size())];
+      for (int i = 0; i < hosts.length; i++) {
+        hosts[i] = entries.get(i).getKey();
+      }
+      return hosts;
+    }
+    
+    List<String> getPaths() {
+      return paths;
+    }
+    
+    void setLocations(String[] locations) {
+      this.locations = locations;
+    }
+    
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public String[] getLocations() {
+      return locations;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(length);
+      out.writeInt(paths.size());
+      for (String path : paths) {
+        Text.writeString(out, path);
+      }
+      // locations are only used by the scheduler, so aren't serialized, akin to FileSplit
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      length = in.readLong();
+      int size = in.readInt();
+      paths = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+        paths.add(Text.readString(in));
+      }
+      locations = new String[0];
+    }
+    
+    @Override
+    public String toString() {
+      return "FileListSplit[files: " + paths.size() + ", length: " + length + "]";
+    }
+  }
+  
+  
+  /** Emits the line of each file of a FileListSplit, keyed by its index within the split */
+  private static final class FileListRecordReader extends RecordReader<LongWritable, Text> {
+    
+    private List<String> paths;
+    private int index = -1;
+    private final LongWritable key = new LongWritable();
+    private final Text value = new Text();
+    
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+      this.paths = ((FileListSplit) split).getPaths();
+    }
+
+    @Override
+    public boolean nextKeyValue() {
+      if (index + 1 >= paths.size()) {
+        return false;
+      }
+      index++;
+      key.set(index);
+      value.set(paths.get(index));
+      return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public Text getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() {
+      return paths.size() == 0 ? 1.0f : (index + 1) / (float) paths.size();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+  
+}
@@ -16,10 +16,17 @@
  */
 package org.apache.solr.hadoop;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -27,19 +34,27 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Enables adding batches of documents to an EmbeddedSolrServer.
+ * Enables adding batches of documents to an EmbeddedSolrServer or a {@link DirectIndexWriterSolrServer}.
+ * 
+ * Batches that are pending in the queue of the writer threads are bounded by their number and by
+ * their size in bytes. If either bound is reached, {@link #queueBatch(Collection)} blocks until
+ * the writer threads catch up, which throttles the reducer without running batches on its own
+ * thread. Pending batches can optionally be kept serialized in direct (off-heap) buffers. Batch
+ * containers, including their buffers, are recycled, except for buffers that have grown beyond
+ * their share of the byte bound, so retained off-heap memory stays within that bound, too.
  */
 class BatchWriter {
   
-  private final EmbeddedSolrServer solr;
+  private final SolrServer solr;
   private volatile Exception batchWriteException = null;
   
   private static final Logger LOG = LoggerFactory.getLogger(BatchWriter.class);
@@ -58,9 +73,29 @@ class BatchWriter {
   /** Queue Size */
   final int queueSize;
 
+  /** Max number of bytes of pending batches */
+  final long maxQueueBytes;
+  
+  /** If true, pending batches are kept serialized in direct buffers */
+  final boolean isOffHeap;
+  
+  /** Direct buffers larger than this are dropped instead of recycled */
+  private final long maxRetainedBufferBytes;
+
   private final ThreadPoolExecutor batchPool;
+  
+  private final ConcurrentLinkedQueue<Batch> freeBatches = new ConcurrentLinkedQueue<Batch>();
+  
+  // guarded by pendingLock:
+  private final Object pendingLock = new Object();
+  private int pendingBatches = 0;
+  private long pendingBytes = 0;
 
   private TaskID taskId = null;
+  
+  private AdaptiveBatchSizer batchSizer = null;
+  
+  private final BatchWriterMetrics metrics = new BatchWriterMetrics();
 
   /**
    * The number of in progress batches, must be zero before the close can
@@ -78,6 +113,10 @@ class BatchWriter {
     
     private List<SolrInputDocument> documents;
     private UpdateResponse result;
+    private DirectByteBufferOutputStream serializedDocuments; // only used off-heap
+    private int numSerializedDocuments;
+    private long numBytes;
+    private boolean isQueued;
 
     public Batch(Collection<SolrInputDocument> batch) {
       documents = new ArrayList<SolrInputDocument>(batch);
@@ -86,9 +125,80 @@ class BatchWriter {
     public void run() {
       try {
         executingBatches.getAndIncrement();
-        result = runUpdate(documents);
+        if (numSerializedDocuments > 0) {
+          deserializeDocuments();
+        }
+        result = runUpdate(documents, numBytes);
       } finally {
         executingBatches.getAndDecrement();
+        if (isQueued) {
+          release(this);
+        }
+      }
+    }
+    
+    /** Prepares this (recycled) container to carry the given documents, estimating their size */
+    void prepare(Collection<SolrInputDocument> batch) {
+      documents.clear();
+      result = null;
+      numBytes = 0;
+      for (SolrInputDocument doc : batch) {
+        numBytes += estimateSize(doc);
+      }
+      numBytes = Math.max(1, numBytes);
+    }
+    
+    /**
+     * Moves the given documents into this container after it has been admitted to the queue, and
+     * returns their actual size in bytes if they are serialized off-heap, or their estimated size
+     */
+    long fill(Collection<SolrInputDocument> batch) throws IOException {
+      if (isOffHeap) {
+        if (serializedDocuments == null) {
+          serializedDocuments = new DirectByteBufferOutputStream();
+        }
+        serializedDocuments.reset();
+        DataOutputStream out = new DataOutputStream(serializedDocuments);
+        SolrInputDocumentWritable writable = new SolrInputDocumentWritable();
+        for (SolrInputDocument doc : batch) {
+          writable.reset(doc).write(out);
+        }
+        out.flush();
+        numSerializedDocuments = batch.size();
+        return Math.max(1, serializedDocuments.size());
+      } else {
+        documents.addAll(batch);
+        return numBytes;
+      }
+    }
+    
+    private void deserializeDocuments() {
+      DataInputStream in = new DataInputStream(serializedDocuments.getInputStream());
+      SolrInputDocumentWritable writable = new SolrInputDocumentWritable();
+      try {
+        for (int i = 0; i < numSerializedDocuments; i++) {
+          writable.readFields(in);
+          documents.add(writable.getSolrInputDocument());
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot deserialize batch from direct buffer", e); // can't happen
+      }
+      numSerializedDocuments = 0;
+    }
+    
+    /** Drops the documents but keeps the container and its buffer for reuse */
+    void clear() {
+      documents.clear();
+      result = null;
+      numSerializedDocuments = 0;
+      numBytes = 0;
+      isQueued = false;
+      if (serializedDocuments != null) {
+        if (serializedDocuments.capacity() > maxRetainedBufferBytes) {
+          serializedDocuments = null; // let GC free it rather than retaining a peak sized buffer forever
+        } else {
+          serializedDocuments.reset();
+        }
       }
     }
 
@@ -130,12 +240,19 @@ class BatchWriter {
   }
 
   protected UpdateResponse runUpdate(List<SolrInputDocument> batchToWrite) {
+    long numBytes = 0;
+    for (SolrInputDocument doc : batchToWrite) {
+      numBytes += estimateSize(doc);
+    }
+    return runUpdate(batchToWrite, numBytes);
+  }
+  
+  private UpdateResponse runUpdate(List<SolrInputDocument> batchToWrite, long numBytes) {
     try {
       UpdateResponse result = solr.add(batchToWrite);
-      SolrRecordWriter.incrementCounter(taskId, SolrCounters.class.getName(), SolrCounters.BATCHES_WRITTEN.toString(), 1);      
-      SolrRecordWriter.incrementCounter(taskId, SolrCounters.class.getName(), SolrCounters.DOCUMENTS_WRITTEN.toString(), batchToWrite.size());
-      if (LOG.isDebugEnabled()) {
-        SolrRecordWriter.incrementCounter(taskId, SolrCounters.class.getName(), SolrCounters.BATCH_WRITE_TIME.toString(), result.getElapsedTime());
+      metrics.recordBatch(batchToWrite.size(), numBytes, result.getElapsedTime());
+      if (batchSizer != null) {
+        batchSizer.onBatchWritten(batchToWrite.size(), result.getElapsedTime());
       }
       return result;
     } catch (Throwable e) {
@@ -144,42 +261,172 @@ class BatchWriter {
       } else {
         setBatchWriteException(new Exception(e));
       }
-      SolrRecordWriter.incrementCounter(taskId, getClass().getName() + ".errors", e.getClass().getName(), 1);
+      metrics.recordError(e);
       LOG.error("Unable to process batch", e);
       return null;
     }
   }
+  
+  /**
+   * Publishes the metrics recorded so far to the counters of the given task; must only be called
+   * from the task's own thread
+   */
+  public void publishMetrics(TaskAttemptContext context) {
+    metrics.publish(context);
+  }
 
 
-  public BatchWriter(EmbeddedSolrServer solr, int batchSize, TaskID tid,
+  public BatchWriter(SolrServer solr, int batchSize, TaskID tid,
       int writerThreads, int queueSize) {
+    this(solr, batchSize, tid, writerThreads, queueSize, Long.MAX_VALUE, false);
+  }
+  
+  public BatchWriter(SolrServer solr, int batchSize, TaskID tid,
+      int writerThreads, int queueSize, long maxQueueBytes, boolean isOffHeap) {
     this.solr = solr;
     this.writerThreads = writerThreads;
     this.queueSize = queueSize;
+    this.maxQueueBytes = maxQueueBytes;
+    this.isOffHeap = isOffHeap;
+    // the buffers of all batches that can be pending at the same time must fit into maxQueueBytes
+    this.maxRetainedBufferBytes = Math.max(DirectByteBufferOutputStream.INITIAL_CAPACITY, 
+        maxQueueBytes / Math.max(1, writerThreads + queueSize));
     taskId = tid;
 
     // we need to obtain the settings before the constructor
     if (writerThreads != 0) {
+      // the queue is bounded by acquire() rather than by the executor
       batchPool = new ThreadPoolExecutor(writerThreads, writerThreads, 5,
-          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
-          new ThreadPoolExecutor.CallerRunsPolicy());
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     } else { // single threaded case
       batchPool = null;
     }
   }
 
+  /** Feeds the add latency of each batch back into the given sizer */
+  public void setAdaptiveBatchSizer(AdaptiveBatchSizer batchSizer) {
+    this.batchSizer = batchSizer;
+  }
+
   public void queueBatch(Collection<SolrInputDocument> batch)
       throws IOException, SolrServerException {
 
     throwIf();
-    Batch b = new Batch(batch);
     if (batchPool != null) {
-      batchPool.execute(b);
+      Batch b = freeBatches.poll();
+      if (b == null) {
+        b = new Batch(new ArrayList<SolrInputDocument>(batch.size()));
+      }
+      b.prepare(batch);
+      acquire(b); // before serializing, so serialized batches never exceed the bound
+      boolean success = false;
+      try {
+        b.isQueued = true;
+        adjustPendingBytes(b, b.fill(batch));
+        batchPool.execute(b); // may throw RejectedExecutionException
+        success = true;
+      } finally {
+        if (!success) {
+          release(b);
+        }
+      }
     } else { // single threaded case
+      Batch b = new Batch(batch);
+      for (SolrInputDocument doc : batch) {
+        b.numBytes += estimateSize(doc);
+      }
       b.run();
       throwIf();
     }
   }
+  
+  /**
+   * Blocks until the given batch fits into the queue. A batch is always admitted if nothing else is
+   * pending, so a single batch that is larger than the byte bound can't stall the writer.
+   */
+  private void acquire(Batch b) throws IOException, SolrServerException {
+    long start = -1;
+    try {
+      synchronized (pendingLock) {
+        while (pendingBatches > 0 
+            && (pendingBatches >= writerThreads + queueSize || pendingBytes + b.numBytes > maxQueueBytes)) {
+          if (start < 0) {
+            start = System.currentTimeMillis();
+          }
+          pendingLock.wait(1000);
+          if (batchWriteException != null) {
+            freeBatches.offer(b);
+            throwIf();
+          }
+        }
+        pendingBatches++;
+        pendingBytes += b.numBytes;
+      }
+    } catch (InterruptedException e) {
+      freeBatches.offer(b);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for space in the batch queue", e);
+    } finally {
+      if (start >= 0) {
+        metrics.recordQueueWait(System.currentTimeMillis() - start);
+      }
+    }
+  }
+  
+  /** Replaces the estimated size of the given admitted batch with its actual size */
+  private void adjustPendingBytes(Batch b, long numBytes) {
+    synchronized (pendingLock) {
+      pendingBytes += numBytes - b.numBytes;
+      b.numBytes = numBytes;
+      pendingLock.notifyAll();
+    }
+  }
+  
+  /** Returns the number of bytes of the batches that are currently pending */
+  long getPendingBytes() {
+    synchronized (pendingLock) {
+      return pendingBytes;
+    }
+  }
+  
+  private void release(Batch b) {
+    synchronized (pendingLock) {
+      pendingBatches--;
+      pendingBytes -= b.numBytes;
+      pendingLock.notifyAll();
+    }
+    b.clear();
+    freeBatches.offer(b);
+  }
+  
+  /** Returns the approximate number of bytes the given document occupies on the heap */
+  static long estimateSize(SolrInputDocument doc) {
+    long size = 16;
+    for (Map.Entry<String, SolrInputField> entry : doc.entrySet()) {
+      size += 32 + 2 * entry.getKey().length();
+      Object value = entry.getValue().getValue();
+      if (value instanceof Collection) {
+        for (Object val : (Collection) value) {
+          size += estimateValueSize(val);
+        }
+      } else {
+        size += estimateValueSize(value);
+      }
+    }
+    return size;
+  }
+  
+  private static long estimateValueSize(Object value) {
+    if (value instanceof CharSequence) {
+      return 40 + 2 * ((CharSequence) value).length();
+    } else if (value instanceof byte[]) {
+      return 16 + ((byte[]) value).length;
+    } else if (value instanceof Number || value instanceof Boolean) {
+      return 16;
+    } else {
+      return 40 + 2 * String.valueOf(value).length();
+    }
+  }
 
   public synchronized void close(TaskAttemptContext context)
       throws InterruptedException, SolrServerException, IOException {
@@ -195,6 +442,8 @@ class BatchWriter {
         batchPool.awaitTermination(5, TimeUnit.SECONDS);
       }
     }
+    metrics.publish(context);
+    metrics.log();
     context.setStatus("Committing Solr Phase 1");
     solr.commit(true, false);
     context.setStatus("Optimizing Solr");
@@ -237,4 +486,84 @@ class BatchWriter {
     }
     throw new IOException("Batch Write Failure", last);
   }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** An OutputStream that writes into a direct ByteBuffer, which grows as needed and can be reused */
+  private static final class DirectByteBufferOutputStream extends OutputStream {
+    
+    static final int INITIAL_CAPACITY = 64 * 1024;
+    
+    // some VMs reserve header words in arrays and buffers
+    static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    
+    @Override
+    public void write(int b) throws IOException {
+      ensureCapacity(1);
+      buffer.put((byte) b);
+    }
+    
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      ensureCapacity(len);
+      buffer.put(bytes, off, len);
+    }
+    
+    private void ensureCapacity(int len) throws IOException {
+      if (buffer.remaining() < len) {
+        long required = (long) buffer.position() + len;
+        if (required > MAX_CAPACITY) {
+          throw new IOException("Serialized batch exceeds the maximum buffer size of " + MAX_CAPACITY + " bytes");
+        }
+        int capacity = (int) Math.max(required, Math.min(MAX_CAPACITY, (long) buffer.capacity() * 2));
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+      }
+    }
+    
+    public int size() {
+      return buffer.position();
+    }
+    
+    public int capacity() {
+      return buffer.capacity();
+    }
+    
+    public void reset() {
+      buffer.clear();
+    }
+    
+    /** Returns a stream over the bytes written so far */
+    public InputStream getInputStream() {
+      final ByteBuffer slice = buffer.duplicate();
+      slice.flip();
+      return new InputStream() {
+        
+        @Override
+        public int read() {
+          return slice.hasRemaining() ? slice.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+          if (!slice.hasRemaining()) {
+            return -1;
+          }
+          len = Math.min(len, slice.remaining());
+          slice.get(bytes, off, len);
+          return len;
+        }
+      };
+    }
+  }
+  
 }
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of a {@link BatchWriter} that many writer threads can record concurrently at negligible
+ * cost: values accumulate in striped atomic counters and in log2 histograms, and are published as
+ * Hadoop counters via {@link #publish(TaskAttemptContext)} by the task's own thread, because the
+ * task context must not be used by other threads. The distributions and errors are only published
+ * as counters if {@link SolrOutputFormat#SOLR_WRITER_DETAILED_COUNTERS} is enabled, because they
+ * could exceed the job's counter limit; otherwise {@link #log()} reports them in the task log.
+ */
+final class BatchWriterMetrics {
+
+  private final StripedCounter batches = new StripedCounter();
+  private final StripedCounter documents = new StripedCounter();
+  private final StripedCounter bytes = new StripedCounter();
+  private final StripedCounter writeTimeMillis = new StripedCounter();
+  private final StripedCounter queueWaitTimeMillis = new StripedCounter();
+  private final Histogram batchSizes = new Histogram("Batches with <= %06d docs");
+  private final Histogram batchLatencies = new Histogram("Batches taking <= %07d ms");
+  private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+  
+  private static final Logger LOG = LoggerFactory.getLogger(BatchWriterMetrics.class);
+  
+  // counter values published so far, keyed by group and name; guarded by this
+  private final Map<String, Long> published = new HashMap<String, Long>();
+  
+  /** Counter group for the distribution of the number of documents per batch */
+  static final String BATCH_SIZES_COUNTER_GROUP = BatchWriterMetrics.class.getName() + ".batchSizes";
+
+  /** Counter group for the distribution of the time it takes to add a batch */
+  static final String BATCH_LATENCIES_COUNTER_GROUP = BatchWriterMetrics.class.getName() + ".batchLatencies";
+
+  /** Counter group for the number of failed batches by exception class */
+  static final String ERRORS_COUNTER_GROUP = BatchWriter.class.getName() + ".errors";
+  
+  /** Records a batch that has been added successfully */
+  public void recordBatch(int numDocs, long numBytes, long elapsedMillis) {
+    batches.add(1);
+    documents.add(numDocs);
+    bytes.add(numBytes);
+    writeTimeMillis.add(elapsedMillis);
+    batchSizes.record(numDocs);
+    batchLatencies.record(elapsedMillis);
+  }
+  
+  public void recordError(Throwable e) {
+    String name = e.getClass().getName();
+    AtomicLong count = errors.get(name);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = errors.putIfAbsent(name, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+  
+  public void recordQueueWait(long millis) {
+    queueWaitTimeMillis.add(millis);
+  }
+  
+  /** Increments the task's counters by whatever has been recorded since the previous call */
+  public synchronized void publish(TaskAttemptContext context) {
+    String group = SolrCounters.class.getName();
+    publish(context, group, SolrCounters.BATCHES_WRITTEN.toString(), batches.sum());
+    publish(context, group, SolrCounters.DOCUMENTS_WRITTEN.toString(), documents.sum());
+    publish(context, group, SolrCounters.BATCH_BYTES_WRITTEN.toString(), bytes.sum());
+    publish(context, group, SolrCounters.BATCH_WRITE_TIME.toString(), writeTimeMillis.sum());
+    publish(context, group, SolrCounters.BATCH_QUEUE_WAIT_TIME.toString(), queueWaitTimeMillis.sum());
+    if (SolrOutputFormat.isSolrWriterDetailedCounters(context.getConfiguration())) {
+      publish(context, BATCH_SIZES_COUNTER_GROUP, batchSizes);
+      publish(context, BATCH_LATENCIES_COUNTER_GROUP, batchLatencies);
+      for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+        publish(context, ERRORS_COUNTER_GROUP, entry.getKey(), entry.getValue().get());
+      }
+    }
+  }
+  
+  /** Logs the distributions and errors recorded so far */
+  public void log() {
+    LOG.info("Batch sizes: {}", format(batchSizes));
+    LOG.info("Batch latencies: {}", format(batchLatencies));
+    if (!errors.isEmpty()) {
+      LOG.info("Failed batches by exception class: {}", errors);
+    }
+  }
+  
+  /** Returns the non-empty buckets of the given histogram as "counterName=count" pairs */
+  static String format(Histogram histogram) {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < histogram.getNumBuckets(); i++) {
+      long count = histogram.getCount(i);
+      if (count > 0) {
+        if (buf.length() > 0) {
+          buf.append(", ");
+        }
+        buf.append(histogram.getCounterName(i)).append('=').append(count);
+      }
+    }
+    return buf.toString();
+  }
+  
+  private void publish(TaskAttemptContext context, String group, Histogram histogram) {
+    for (int i = 0; i < histogram.getNumBuckets(); i++) {
+      long count = histogram.getCount(i);
+      if (count > 0) {
+        publish(context, group, histogram.getCounterName(i), count);
+      }
+    }
+  }
+  
+  private void publish(TaskAttemptContext context, String group, String name, long total) {
+    String key = group + '\u0000' + name;
+    Long previous = published.get(key);
+    long delta = total - (previous == null ? 0 : previous.longValue());
+    if (delta != 0) {
+      context.getCounter(group, name).increment(delta);
+      published.put(key, total);
+    }
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * A counter that spreads concurrent updates over several cache line padded cells, selected by
+   * thread, so writer threads don't contend on the same memory; akin to Java 8's LongAdder
+   */
+  static final class StripedCounter {
+    
+    private static final int NUM_STRIPES = 16; // power of two
+    private static final int PADDING = 8; // longs per 64 byte cache line
+    
+    private final AtomicLongArray cells = new AtomicLongArray(NUM_STRIPES * PADDING);
+    
+    public void add(long value) {
+      long id = Thread.currentThread().getId();
+      int stripe = (int) (id ^ (id >>> 16)) & (NUM_STRIPES - 1);
+      cells.addAndGet(stripe * PADDING, value);
+    }
+    
+    public long sum() {
+      long sum = 0;
+      for (int i = 0; i < NUM_STRIPES; i++) {
+        sum += cells.get(i * PADDING);
+      }
+      return sum;
+    }
+  }
+  
+  
+  /** Counts values in buckets with power of two upper bounds */
+  static final class Histogram {
+    
+    private final String counterNameFormat;
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    
+    public Histogram(String counterNameFormat) {
+      this.counterNameFormat = counterNameFormat;
+    }
+    
+    public void record(long value) {
+      buckets.incrementAndGet(getBucket(value));
+    }
+    
+    public long getCount(int bucket) {
+      return buckets.get(bucket);
+    }
+    
+    /** Returns the index of the smallest bucket whose upper bound 2^index is at least the given value */
+    static int getBucket(long value) {
+      return value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+    }
+    
+    /** Returns the counter name of the given bucket, zero padded for sorting in the UI */
+    public String getCounterName(int bucket) {
+      return String.format(counterNameFormat, 1L << Math.min(62, bucket));
+    }
+
+    public int getNumBuckets() {
+      return buckets.length();
+    }
+  }
+  
+}
@@ -0,0 +1,397 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.Serialization;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.util.SystemIdResolver;
+import org.xml.sax.InputSource;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A Hadoop Serialization for {@link SolrInputDocumentWritable} that is more compact than JavaBin,
+ * and is used for the intermediate map output (spills, shuffle and merges) if enabled via
+ * {@link #IS_ENABLED}.
+ * 
+ * Field names declared in the job's IndexSchema are written as varint ordinals instead of strings,
+ * the unique key field is dropped (the shuffle key carries it already, and the SolrRecordWriter
+ * restores it), ints and longs are written as varints, and string values of at least
+ * {@link #COMPRESSION_THRESHOLD} bytes are compressed with LZ4. Values of any other type fall back
+ * to JavaBin.
+ */
+public class CompactSolrInputDocumentSerialization extends Configured implements Serialization<SolrInputDocumentWritable> {
+
+  /** If true, MapReduceIndexerTool registers this serialization, configured from the schema */
+  public static final String IS_ENABLED = CompactSolrInputDocumentSerialization.class.getName() + ".enabled";
+  
+  /** The field names that are encoded as ordinals, in ordinal order */
+  public static final String FIELD_NAMES = CompactSolrInputDocumentSerialization.class.getName() + ".fieldNames";
+  
+  /** Name of the unique key field to drop from the serialized documents, if any */
+  public static final String UNIQUE_KEY_FIELD_NAME = CompactSolrInputDocumentSerialization.class.getName() + ".uniqueKeyFieldName";
+  
+  /** Min number of UTF-8 bytes of a string value to be compressed; zero or less disables compression */
+  public static final String COMPRESSION_THRESHOLD = CompactSolrInputDocumentSerialization.class.getName() + ".compressionThreshold";
+  
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte COMPRESSED_STRING = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte FLOAT = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte TRUE = 7;
+  private static final byte FALSE = 8;
+  private static final byte DATE = 9;
+  private static final byte BYTES = 10;
+  private static final byte JAVABIN = 11;
+  
+  /**
+   * Registers this serialization in front of all other serializations of the given job
+   * configuration, and derives its field names and unique key from the schema in the given solr
+   * home dir.
+   */
+  public static void configure(Configuration conf, File solrHomeDir) throws IOException {
+    IndexSchema schema;
+    try {
+      SolrResourceLoader loader = new SolrResourceLoader(solrHomeDir.getPath(), null, null);
+      SolrConfig solrConfig = new SolrConfig(loader, "solrconfig.xml", null);
+      InputSource is = new InputSource(loader.openSchema("schema.xml"));
+      is.setSystemId(SystemIdResolver.createSystemIdFromResourceName("schema.xml"));
+      schema = new IndexSchema(solrConfig, "schema.xml", is);
+    } catch (Exception e) {
+      throw new IOException("Cannot load solrconfig.xml and schema.xml from " + solrHomeDir, e);
+    }
+    
+    String[] fieldNames = schema.getFields().keySet().toArray(new String[0]);
+    Arrays.sort(fieldNames); // deterministic ordinals
+    conf.setStrings(FIELD_NAMES, fieldNames);
+    SchemaField uniqueKey = schema.getUniqueKeyField();
+    if (uniqueKey != null && conf.get(UNIQUE_KEY_FIELD_NAME) == null) { // enable customization
+      conf.set(UNIQUE_KEY_FIELD_NAME, uniqueKey.getName());
+    }
+    
+    List<String> serializations = new ArrayList<String>();
+    serializations.add(CompactSolrInputDocumentSerialization.class.getName());
+    for (String serialization : conf.getStrings(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY, new String[0])) {
+      if (!serializations.contains(serialization)) {
+        serializations.add(serialization);
+      }
+    }
+    conf.setStrings(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY, serializations.toArray(new String[serializations.size()]));
+  }
+  
+  /** Returns the name of the unique key field that the serialized documents lack, or null */
+  public static String getDroppedUniqueKeyFieldName(Configuration conf) {
+    return isRegistered(conf) ? conf.get(UNIQUE_KEY_FIELD_NAME) : null;
+  }
+  
+  private static boolean isRegistered(Configuration conf) {
+    String[] serializations = conf.getStrings(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY, new String[0]);
+    return serializations.length > 0 && serializations[0].equals(CompactSolrInputDocumentSerialization.class.getName());
+  }
+  
+  @Override
+  public boolean accept(Class<?> c) {
+    return SolrInputDocumentWritable.class.isAssignableFrom(c);
+  }
+
+  @Override
+  public Serializer<SolrInputDocumentWritable> getSerializer(Class<SolrInputDocumentWritable> c) {
+    return new CompactSerializer(getConf());
+  }
+
+  @Override
+  public Deserializer<SolrInputDocumentWritable> getDeserializer(Class<SolrInputDocumentWritable> c) {
+    return new CompactDeserializer(getConf());
+  }
+
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  static final class CompactSerializer implements Serializer<SolrInputDocumentWritable> {
+    
+    private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    private final String uniqueKeyFieldName;
+    private final int compressionThreshold;
+    private final Compressor compressor;
+    private byte[] compressed = new byte[0];
+    private DataOutputStream out;
+    
+    CompactSerializer(Configuration conf) {
+      String[] fieldNames = conf.getStrings(FIELD_NAMES, new String[0]);
+      for (int i = 0; i < fieldNames.length; i++) {
+        ordinals.put(fieldNames[i], i);
+      }
+      this.uniqueKeyFieldName = conf.get(UNIQUE_KEY_FIELD_NAME);
+      this.compressionThreshold = conf.getInt(COMPRESSION_THRESHOLD, 0);
+      this.compressor = compressionThreshold > 0 ? CompressionMode.FAST.newCompressor() : null;
+    }
+
+    @Override
+    public void open(OutputStream out) {
+      this.out = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+    }
+
+    @Override
+    public void serialize(SolrInputDocumentWritable writable) throws IOException {
+      SolrInputDocument doc = writable.getSolrInputDocument();
+      SolrInputField uniqueKeyField = uniqueKeyFieldName == null ? null : doc.getField(uniqueKeyFieldName);
+      if (uniqueKeyField != null && !(uniqueKeyField.getValueCount() == 1 && uniqueKeyField.getValue() instanceof String 
+          && uniqueKeyField.getBoost() == 1.0f)) {
+        uniqueKeyField = null; // can't be restored from the shuffle key
+      }
+      
+      out.writeFloat(doc.getDocumentBoost());
+      WritableUtils.writeVInt(out, uniqueKeyField == null ? doc.size() : doc.size() - 1);
+      for (SolrInputField field : doc.values()) {
+        if (field == uniqueKeyField) {
+          continue;
+        }
+        boolean hasBoost = field.getBoost() != 1.0f;
+        Integer ordinal = ordinals.get(field.getName());
+        int code = ordinal == null ? 0 : ordinal.intValue() + 1;
+        WritableUtils.writeVInt(out, (code << 1) | (hasBoost ? 1 : 0));
+        if (ordinal == null) {
+          Text.writeString(out, field.getName());
+        }
+        if (hasBoost) {
+          out.writeFloat(field.getBoost());
+        }
+        WritableUtils.writeVInt(out, field.getValueCount());
+        for (Object value : field) {
+          writeValue(value);
+        }
+      }
+    }
+    
+    private void writeValue(Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(NULL);
+      } else if (value instanceof String) {
+        writeString((String) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(INT);
+        WritableUtils.writeVInt(out, (Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(LONG);
+        WritableUtils.writeVLong(out, (Long) value);
+      } else if (value instanceof Float) {
+        out.writeByte(FLOAT);
+        out.writeFloat((Float) value);
+      } else if (value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+      } else if (value instanceof Date) {
+        out.writeByte(DATE);
+        WritableUtils.writeVLong(out, ((Date) value).getTime());
+      } else if (value instanceof byte[]) {
+        byte[] bytes = (byte[]) value;
+        writeBytes(BYTES, bytes, 0, bytes.length);
+      } else {
+        // e.g. a Map for an atomic update, or a BigDecimal
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(value, bytes);
+        writeBytes(JAVABIN, bytes.toByteArray(), 0, bytes.size());
+      }
+    }
+    
+    private void writeString(String value) throws IOException {
+      if (compressor == null || value.length() < compressionThreshold / 3) {
+        out.writeByte(STRING); // too short to be worth it, even if every char takes 3 UTF-8 bytes
+        Text.writeString(out, value);
+        return;
+      }
+      byte[] utf8 = value.getBytes(Charsets.UTF_8);
+      if (utf8.length < compressionThreshold) {
+        writeBytes(STRING, utf8, 0, utf8.length);
+        return;
+      }
+      int maxLength = utf8.length + utf8.length / 255 + 64; // LZ4 worst case
+      if (compressed.length < maxLength) {
+        compressed = new byte[maxLength];
+      }
+      ByteArrayDataOutput compressedOut = new ByteArrayDataOutput(compressed);
+      compressor.compress(utf8, 0, utf8.length, compressedOut);
+      int compressedLength = compressedOut.getPosition();
+      if (compressedLength >= utf8.length) {
+        writeBytes(STRING, utf8, 0, utf8.length); // incompressible
+        return;
+      }
+      out.writeByte(COMPRESSED_STRING);
+      WritableUtils.writeVInt(out, utf8.length);
+      WritableUtils.writeVInt(out, compressedLength);
+      out.write(compressed, 0, compressedLength);
+    }
+    
+    private void writeBytes(byte tag, byte[] bytes, int offset, int length) throws IOException {
+      out.writeByte(tag);
+      WritableUtils.writeVInt(out, length);
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  static final class CompactDeserializer implements Deserializer<SolrInputDocumentWritable> {
+    
+    private final String[] fieldNames;
+    private final Decompressor decompressor = CompressionMode.FAST.newDecompressor();
+    private final BytesRef decompressed = new BytesRef();
+    private byte[] buffer = new byte[0];
+    private InputStream stream;
+    private DataInput in;
+    
+    CompactDeserializer(Configuration conf) {
+      this.fieldNames = conf.getStrings(FIELD_NAMES, new String[0]);
+    }
+
+    @Override
+    public void open(InputStream in) {
+      this.stream = in;
+      this.in = in instanceof DataInput ? (DataInput) in : new DataInputStream(in);
+    }
+
+    @Override
+    public SolrInputDocumentWritable deserialize(SolrInputDocumentWritable writable) throws IOException {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setDocumentBoost(in.readFloat());
+      int numFields = WritableUtils.readVInt(in);
+      for (int i = 0; i < numFields; i++) {
+        int code = WritableUtils.readVInt(in);
+        int ordinal = (code >>> 1) - 1;
+        String name = ordinal < 0 ? Text.readString(in) : fieldNames[ordinal];
+        float boost = (code & 1) != 0 ? in.readFloat() : 1.0f;
+        int numValues = WritableUtils.readVInt(in);
+        if (numValues == 0) {
+          doc.setField(name, null, boost);
+        } else if (numValues == 1) {
+          doc.setField(name, readValue(), boost);
+        } else {
+          Collection<Object> values = new ArrayList<Object>(numValues);
+          for (int j = 0; j < numValues; j++) {
+            values.add(readValue());
+          }
+          doc.setField(name, values, boost);
+        }
+      }
+      return writable == null ? new SolrInputDocumentWritable(doc) : writable.reset(doc);
+    }
+    
+    private Object readValue() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NULL: 
+          return null;
+        case STRING: 
+          return Text.readString(in);
+        case COMPRESSED_STRING: {
+          int length = WritableUtils.readVInt(in);
+          int compressedLength = readBytes(WritableUtils.readVInt(in));
+          decompressor.decompress(new ByteArrayDataInput(buffer, 0, compressedLength), length, 0, length, decompressed);
+          return new String(decompressed.bytes, decompressed.offset, decompressed.length, Charsets.UTF_8);
+        }
+        case INT: 
+          return WritableUtils.readVInt(in);
+        case LONG: 
+          return WritableUtils.readVLong(in);
+        case FLOAT: 
+          return in.readFloat();
+        case DOUBLE: 
+          return in.readDouble();
+        case TRUE: 
+          return Boolean.TRUE;
+        case FALSE: 
+          return Boolean.FALSE;
+        case DATE: 
+          return new Date(WritableUtils.readVLong(in));
+        case BYTES: {
+          byte[] bytes = new byte[WritableUtils.readVInt(in)];
+          in.readFully(bytes);
+          return bytes;
+        }
+        case JAVABIN: {
+          int length = readBytes(WritableUtils.readVInt(in));
+          return new JavaBinCodec().unmarshal(new ByteArrayInputStream(buffer, 0, length));
+        }
+        default: 
+          throw new IOException("Unknown value tag: " + tag);
+      }
+    }
+    
+    private int readBytes(int length) throws IOException {
+      if (buffer.length < length) {
+        buffer = new byte[length];
+      }
+      in.readFully(buffer, 0, length);
+      return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      stream.close();
+    }
+  }
+  
+}
@@ -52,8 +52,30 @@ public class DataInputInputStream extends InputStream {
     this.in = in;
   }
 
+  /** Reattaches this stream to the given DataInput, enabling a single instance to be reused. */
+  void setDataInput(DataInput in) {
+    this.in = in;
+  }
+
   @Override
   public int read() throws IOException {
     return in.readUnsignedByte();
   }
+
+  /**
+   * Reads the given number of bytes in bulk rather than one virtual readUnsignedByte() call per
+   * byte. As a DataInput doesn't tell how many bytes are available, this blocks until len bytes
+   * have been read, or throws an EOFException.
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (in instanceof InputStream) {
+      return ((InputStream) in).read(b, off, len);
+    }
+    if (len == 0) {
+      return 0;
+    }
+    in.readFully(b, off, len);
+    return len;
+  }
 }
@@ -28,7 +28,7 @@ import org.apache.hadoop.classification.InterfaceAudience;
 @InterfaceAudience.Private
 public class DataOutputOutputStream extends OutputStream {
 
-  private final DataOutput out;
+  private DataOutput out;
 
   /**
    * Construct an OutputStream from the given DataOutput. If 'out'
@@ -49,6 +49,18 @@ public class DataOutputOutputStream extends OutputStream {
     this.out = out;
   }
 
+  /**
+   * Construct an OutputStream that is not yet attached to a DataOutput. Use
+   * {@link #setDataOutput(DataOutput)} to (re)attach it, which enables a single
+   * instance to be reused across many records.
+   */
+  DataOutputOutputStream() {
+  }
+
+  void setDataOutput(DataOutput out) {
+    this.out = out;
+  }
+
   @Override
   public void write(int b) throws IOException {
     out.writeByte(b);
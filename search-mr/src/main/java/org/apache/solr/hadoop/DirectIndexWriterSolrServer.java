@@ -0,0 +1,377 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InfoStream;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.store.hdfs.HdfsDirectory;
+import org.apache.solr.update.DocumentBuilder;
+import org.apache.solr.util.SystemIdResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * A SolrServer that bypasses the SolrCore and its update request processor chain, and instead
+ * converts each SolrInputDocument into a Lucene Document via the IndexSchema and feeds it straight
+ * into a Lucene IndexWriter that writes into the output shard's data/index dir.
+ * 
+ * This is much cheaper to start up and typically has higher indexing throughput than an
+ * EmbeddedSolrServer, but it only supports adding documents plus commit and optimize requests. In
+ * particular, no custom update request processors are run, atomic updates and deletes are not
+ * supported, no _version_ values are assigned, and the schema must not configure per field
+ * postings or doc values formats. Like the update handler of a SolrCore, documents overwrite
+ * earlier documents with the same unique key, as the UpdateConflictResolver of the reducer may pass
+ * several versions of a document through. Enabled via {@link SolrOutputFormat#SOLR_RECORD_WRITER_DIRECT_INDEXING}.
+ * 
+ * If {@link SolrOutputFormat#SOLR_RECORD_WRITER_LOCAL_BUILD} is enabled the index is built in an
+ * FSDirectory (MMapDirectory or NIOFSDirectory) on the task's local disks instead of on HDFS, such
+ * that flushes and merges don't go over the network. The index is committed periodically and the
+ * files of each commit are streamed to the output shard dir in the background via a
+ * {@link LocalIndexUploader}, while a snapshot protects them from being deleted locally.
+ * 
+ * If {@link SolrOutputFormat#SOLR_RECORD_WRITER_INCREMENTAL_MERGE} is enabled the index converges on
+ * {@link SolrOutputFormat#SOLR_RECORD_WRITER_MAX_SEGMENTS} while documents are still arriving: a
+ * ConcurrentMergeScheduler runs natural merges in the background, and whenever the number of added
+ * documents has doubled a non-blocking forced merge folds the smallest segments together, such that
+ * the final optimize mostly only needs to fold in the segments flushed since the last such round.
+ * As forced merges leave the largest segments alone, this pays off most with more than one max
+ * segment; the rounds amortize to a constant factor of write amplification.
+ */
+final class DirectIndexWriterSolrServer extends SolrServer {
+  
+  private final IndexSchema schema;
+  private final Directory dir;
+  private final IndexWriter writer;
+  
+  // only used when building the index on local disk:
+  private final File localIndexDir;
+  private final LocalIndexUploader uploader;
+  private final SnapshotDeletionPolicy snapshotPolicy;
+  private final List<PendingUpload> pendingUploads = new ArrayList<PendingUpload>();
+  private final long commitIntervalMillis;
+  private volatile long nextCommitTime;
+  
+  // only used when merging incrementally:
+  private final int maxSegments;
+  private final AtomicLong numDocsAdded = new AtomicLong();
+  private volatile long nextIncrementalMergeDocs = FIRST_INCREMENTAL_MERGE_DOCS;
+  
+  private static final long FIRST_INCREMENTAL_MERGE_DOCS = 100000;
+  
+  private static final Logger LOG = LoggerFactory.getLogger(DirectIndexWriterSolrServer.class);
+
+  public DirectIndexWriterSolrServer(Path solrHomeDir, FileSystem fs, Path outputShardDir, Configuration conf)
+      throws IOException {
+    
+    if (solrHomeDir == null) {
+      throw new IOException("Unable to find solr home setting");
+    }
+    Path indexDir = new Path(outputShardDir, "data/index");
+    LOG.info("Creating direct IndexWriter with solrHomeDir: " + solrHomeDir + ", fs: " + fs + ", indexDir: " + indexDir);
+    if (!fs.exists(indexDir) && !fs.mkdirs(indexDir)) {
+      throw new IOException("Unable to create " + indexDir);
+    }
+
+    SolrConfig solrConfig;
+    SolrResourceLoader loader = new SolrResourceLoader(solrHomeDir.toString(), null, null);
+    try {
+      solrConfig = new SolrConfig(loader, "solrconfig.xml", null);
+      InputSource is = new InputSource(loader.openSchema("schema.xml"));
+      is.setSystemId(SystemIdResolver.createSystemIdFromResourceName("schema.xml"));
+      this.schema = new IndexSchema(solrConfig, "schema.xml", is);
+    } catch (Exception e) {
+      throw new IOException("Cannot load solrconfig.xml and schema.xml from " + solrHomeDir, e);
+    }
+    
+    for (FieldType fieldType : schema.getFieldTypes().values()) {
+      if (fieldType.getPostingsFormat() != null || fieldType.getDocValuesFormat() != null) {
+        throw new IllegalArgumentException("Direct indexing does not support per field postings or doc values " 
+            + "formats, as configured for field type: " + fieldType.getTypeName());
+      }
+    }
+    
+    // start from the tuned index settings in solrconfig.xml
+    IndexWriterConfig writerConfig = solrConfig.indexConfig.toIndexWriterConfig(schema);
+    writerConfig.setOpenMode(OpenMode.CREATE);
+    double ramBufferSizeMB = SolrOutputFormat.getSolrRecordWriterRamBufferSizeMB(conf);
+    if (ramBufferSizeMB > 0) {
+      writerConfig.setRAMBufferSizeMB(ramBufferSizeMB);
+    }
+    int indexingThreads = SolrOutputFormat.getSolrRecordWriterIndexingThreads(conf);
+    if (indexingThreads > 0) {
+      writerConfig.setMaxThreadStates(indexingThreads);
+    }
+    writerConfig.setInfoStream(new LoggingInfoStream());
+    
+    if (SolrOutputFormat.isIncrementalMerge(conf)) {
+      this.maxSegments = Math.max(1, conf.getInt(SolrOutputFormat.SOLR_RECORD_WRITER_MAX_SEGMENTS, 1));
+      TieredMergePolicy mergePolicy;
+      if (writerConfig.getMergePolicy() instanceof TieredMergePolicy) {
+        mergePolicy = (TieredMergePolicy) writerConfig.getMergePolicy();
+      } else {
+        mergePolicy = new TieredMergePolicy();
+        writerConfig.setMergePolicy(mergePolicy);
+      }
+      mergePolicy.setMaxMergedSegmentMB(1024 * 1024); // don't exclude large segments from converging
+      mergePolicy.setMaxMergeAtOnceExplicit(Math.max(1000, mergePolicy.getMaxMergeAtOnceExplicit())); // one pass
+      int mergeThreads = SolrOutputFormat.getSolrRecordWriterMergeThreads(conf);
+      ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+      mergeScheduler.setMaxMergesAndThreads(mergeThreads + 2, mergeThreads);
+      writerConfig.setMergeScheduler(mergeScheduler);
+      LOG.info("Merging incrementally towards {} segments with {} merge threads", maxSegments, mergeThreads);
+    } else {
+      this.maxSegments = 0;
+    }
+    
+    if (SolrOutputFormat.isLocalBuild(conf)) {
+      LocalDirAllocator allocator = new LocalDirAllocator("mapred.local.dir");
+      String taskDirName = "solr-index-" + outputShardDir.getName() + "-" + System.nanoTime();
+      this.localIndexDir = new File(allocator.getLocalPathForWrite(taskDirName, conf).toUri().getPath());
+      if (!localIndexDir.mkdirs()) {
+        throw new IOException("Unable to create " + localIndexDir);
+      }
+      LOG.info("Building index on local disk in {} and uploading it to {}", localIndexDir, indexDir);
+      this.uploader = new LocalIndexUploader(localIndexDir, fs, indexDir, 
+          SolrOutputFormat.getSolrRecordWriterUploadThreads(conf), conf);
+      this.snapshotPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+      writerConfig.setIndexDeletionPolicy(snapshotPolicy);
+      this.commitIntervalMillis = 1000L * SolrOutputFormat.getSolrRecordWriterLocalBuildCommitIntervalSecs(conf);
+      this.nextCommitTime = System.currentTimeMillis() + commitIntervalMillis;
+      this.dir = FSDirectory.open(localIndexDir);
+    } else {
+      this.localIndexDir = null;
+      this.uploader = null;
+      this.snapshotPolicy = null;
+      this.commitIntervalMillis = 0;
+      this.dir = new HdfsDirectory(indexDir, conf);
+    }
+    LOG.info("Using IndexWriterConfig: {} with directory: {}", writerConfig, dir);
+    this.writer = new IndexWriter(dir, writerConfig);
+  }
+  
+  IndexSchema getSchema() {
+    return schema;
+  }
+
+  @Override
+  public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+    if (!(request instanceof UpdateRequest)) {
+      throw new UnsupportedOperationException("Unsupported request: " + request);
+    }
+    long start = System.currentTimeMillis();
+    UpdateRequest updateRequest = (UpdateRequest) request;
+    if (updateRequest.getDeleteById() != null || updateRequest.getDeleteQuery() != null) {
+      throw new UnsupportedOperationException("Direct indexing does not support deletes");
+    }
+    
+    Collection<SolrInputDocument> docs = updateRequest.getDocuments();
+    if (docs != null && docs.size() > 0) {
+      SchemaField uniqueKeyField = schema.getUniqueKeyField();
+      for (SolrInputDocument doc : docs) {
+        checkNoAtomicUpdate(doc);
+        Document luceneDoc = DocumentBuilder.toDocument(doc, schema);
+        if (uniqueKeyField == null) {
+          writer.addDocument(luceneDoc);
+        } else {
+          Object id = doc.getFieldValue(uniqueKeyField.getName());
+          if (id == null) {
+            throw new SolrException(ErrorCode.BAD_REQUEST, "Document is missing mandatory uniqueKey field: " 
+                + uniqueKeyField.getName());
+          }
+          BytesRef indexedId = new BytesRef();
+          uniqueKeyField.getType().readableToIndexed(id.toString(), indexedId);
+          writer.updateDocument(new Term(uniqueKeyField.getName(), indexedId), luceneDoc);
+        }
+      }
+      if (maxSegments > 0) {
+        long numDocs = numDocsAdded.addAndGet(docs.size());
+        if (numDocs >= nextIncrementalMergeDocs) {
+          mergeIncrementally(numDocs);
+        }
+      }
+    }
+    
+    SolrParams params = updateRequest.getParams();
+    if (params != null && params.getBool(UpdateParams.OPTIMIZE, false)) {
+      writer.forceMerge(params.getInt(UpdateParams.MAX_OPTIMIZE_SEGMENTS, 1));
+      commit();
+    } else if (params != null && params.getBool(UpdateParams.COMMIT, false)) {
+      commit();
+    } else if (uploader != null && System.currentTimeMillis() >= nextCommitTime) {
+      commit(); // seal the segments flushed so far such that they can be uploaded in the background
+    }
+    
+    NamedList<Object> header = new NamedList<Object>();
+    header.add("status", 0);
+    header.add("QTime", (int) (System.currentTimeMillis() - start));
+    NamedList<Object> response = new NamedList<Object>();
+    response.add("responseHeader", header);
+    return response;
+  }
+
+  private static void checkNoAtomicUpdate(SolrInputDocument doc) {
+    for (SolrInputField field : doc) {
+      if (field.getValue() instanceof Map) {
+        throw new UnsupportedOperationException("Direct indexing does not support atomic updates, as requested for field: " 
+            + field.getName());
+      }
+    }
+  }
+  
+  /** Kicks off background merges towards maxSegments without waiting for them to complete */
+  private synchronized void mergeIncrementally(long numDocs) throws IOException {
+    if (numDocs < nextIncrementalMergeDocs) {
+      return; // another thread has already started this round
+    }
+    nextIncrementalMergeDocs = 2 * numDocs; // geometric rounds bound the total number of bytes rewritten
+    LOG.info("Merging towards {} segments in the background after {} docs", maxSegments, numDocs);
+    writer.forceMerge(maxSegments, false);
+  }
+  
+  private synchronized void commit() throws IOException {
+    writer.commit();
+    if (uploader != null) {
+      releaseCompletedUploads(false);
+      IndexCommit commit = snapshotPolicy.snapshot();
+      pendingUploads.add(new PendingUpload(commit, uploader.upload(commit.getFileNames())));
+      nextCommitTime = System.currentTimeMillis() + commitIntervalMillis;
+    }
+  }
+  
+  /** Allows the local IndexWriter to delete the files of commits that have been fully uploaded */
+  private synchronized void releaseCompletedUploads(boolean force) throws IOException {
+    Iterator<PendingUpload> iter = pendingUploads.iterator();
+    while (iter.hasNext()) {
+      PendingUpload pendingUpload = iter.next();
+      if (force || pendingUpload.isDone()) {
+        snapshotPolicy.release(pendingUpload.commit);
+        iter.remove();
+      }
+    }
+  }
+  
+  @Override
+  public void shutdown() {
+    try {
+      writer.close();
+      if (uploader != null) {
+        List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+        IndexCommit finalCommit = commits.get(commits.size() - 1);
+        uploader.finish(finalCommit.getFileNames());
+        releaseCompletedUploads(true);
+      }
+      dir.close();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot close IndexWriter", e);
+    } finally {
+      if (uploader != null) {
+        uploader.close();
+        FileUtil.fullyDelete(localIndexDir);
+      }
+    }
+  }
+
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** A snapshotted commit point whose files are being uploaded */
+  private static final class PendingUpload {
+    
+    private final IndexCommit commit;
+    private final List<Future<?>> futures;
+    
+    public PendingUpload(IndexCommit commit, List<Future<?>> futures) {
+      this.commit = commit;
+      this.futures = futures;
+    }
+    
+    public boolean isDone() {
+      for (Future<?> future : futures) {
+        if (!future.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  
+  /** Sends the diagnostics of the IndexWriter to the task log at debug level, rather than to stdout */
+  private static final class LoggingInfoStream extends InfoStream {
+    
+    @Override
+    public void message(String component, String message) {
+      LOG.debug("{}: {}", component, message);
+    }
+    
+    @Override
+    public boolean isEnabled(String component) {
+      return LOG.isDebugEnabled();
+    }
+    
+    @Override
+    public void close() {
+    }
+  }
+
+}
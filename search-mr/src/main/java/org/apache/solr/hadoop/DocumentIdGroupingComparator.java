@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Raw comparator for the {@link Text} shuffle keys emitted by the mappers, which groups keys by
+ * unique document id without deserializing them.
+ * 
+ * A key consists of the document id, optionally followed by {@link #KEY_SEPARATOR} and a sort
+ * suffix (e.g. an encoded document version). Only the bytes before the separator take part in the
+ * comparison, so all versions of a document are handed to the same reduce() call, in the order
+ * imposed by the (byte-wise) sort comparator. Keys without a separator are compared exactly like
+ * {@link Text.Comparator} does.
+ */
+public class DocumentIdGroupingComparator extends WritableComparator {
+
+  /** Separates the document id from an optional sort suffix within a shuffle key */
+  public static final byte KEY_SEPARATOR = 0;
+
+  public DocumentIdGroupingComparator() {
+    super(Text.class);
+  }
+
+  @Override
+  public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+    int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+    int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+    s1 += n1;
+    l1 -= n1;
+    s2 += n2;
+    l2 -= n2;
+    return compareBytes(b1, s1, getIdLength(b1, s1, l1), b2, s2, getIdLength(b2, s2, l2));
+  }
+
+  @Override
+  public int compare(WritableComparable a, WritableComparable b) {
+    Text t1 = (Text) a;
+    Text t2 = (Text) b;
+    return compareBytes(
+        t1.getBytes(), 0, getIdLength(t1.getBytes(), 0, t1.getLength()), 
+        t2.getBytes(), 0, getIdLength(t2.getBytes(), 0, t2.getLength()));
+  }
+
+  /** Returns the document id contained in the given shuffle key, stripping any sort suffix */
+  public static Text getDocumentId(Text key) {
+    int idLength = getIdLength(key.getBytes(), 0, key.getLength());
+    if (idLength == key.getLength()) {
+      return key;
+    }
+    Text docId = new Text();
+    docId.set(key.getBytes(), 0, idLength);
+    return docId;
+  }
+
+  /** Returns the number of leading bytes of the given UTF-8 key that make up the document id */
+  public static int getIdLength(byte[] utf8, int start, int length) {
+    int end = start + length;
+    for (int i = start; i < end; i++) {
+      if (utf8[i] == KEY_SEPARATOR) {
+        return i - start;
+      }
+    }
+    return length;
+  }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * MapReduce partitioner that hashes only the document id portion of a shuffle key, ignoring any
+ * sort suffix (see {@link DocumentIdGroupingComparator}), such that all versions of a document are
+ * sent to the same reducer. For keys without sort suffix the result is identical to Hadoop's
+ * default HashPartitioner.
+ */
+public class DocumentIdPartitioner extends Partitioner<Text, SolrInputDocumentWritable> {
+
+  @Override
+  public int getPartition(Text key, SolrInputDocumentWritable value, int numPartitions) {
+    int idLength = DocumentIdGroupingComparator.getIdLength(key.getBytes(), 0, key.getLength());
+    int hashCode = WritableComparator.hashBytes(key.getBytes(), idLength); // same as Text.hashCode()
+    return (hashCode & Integer.MAX_VALUE) % numPartitions;
+  }
+
+}
@@ -17,10 +17,16 @@
 package org.apache.solr.hadoop;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -32,10 +38,16 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrServer;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.hadoop.MapReduceIndexerTool.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,13 +55,34 @@ import org.slf4j.LoggerFactory;
 /**
  * The optional (parallel) GoLive phase merges the output shards of the previous
  * phase into a set of live customer facing Solr servers, typically a SolrCloud.
+ * 
+ * Each output shard is merged into every replica of its target shard. The live merges are grouped
+ * by the Solr node that hosts the target core, such that no node runs more than
+ * {@link Options#goLiveThreadsPerNode} merges at a time, and the largest shards are merged first.
+ * Merges and commits that fail transiently are retried with exponential backoff, and the final
+ * commits are issued in parallel.
  */
 class GoLive {
 
   private static final Logger LOG = LoggerFactory.getLogger(GoLive.class);
   
-  // TODO: handle clusters with replicas
-  public boolean goLive(Options options, FileStatus[] outDirs) {
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+  
+  private final long initialRetryDelayMillis;
+  private final long maxRetryDelayMillis;
+  
+  public GoLive() {
+    this(INITIAL_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+  }
+  
+  /** Uses the given backoff delays between retries; visible for testing */
+  GoLive(long initialRetryDelayMillis, long maxRetryDelayMillis) {
+    this.initialRetryDelayMillis = initialRetryDelayMillis;
+    this.maxRetryDelayMillis = maxRetryDelayMillis;
+  }
+  
+  public boolean goLive(Options options, FileStatus[] outDirs, FileSystem fs) {
     LOG.info("Live merging of output shards into Solr cluster...");
     boolean success = false;
     long start = System.currentTimeMillis();
@@ -59,15 +92,15 @@ class GoLive {
         new LinkedBlockingQueue<Runnable>());
     
     try {
-      CompletionService<Request> completionService = new ExecutorCompletionService<Request>(executor);
-      Set<Future<Request>> pending = new HashSet<Future<Request>>();
+      List<MergeTask> tasks = new ArrayList<MergeTask>();
       int cnt = -1;
-      for (final FileStatus dir : outDirs) {
+      for (FileStatus dir : outDirs) {
         
         LOG.debug("processing: " + dir.getPath());
 
         cnt++;
         List<String> urls = options.shardUrls.get(cnt);
+        long indexSize = getIndexSize(dir, fs);
         
         for (String url : urls) {
           
@@ -82,90 +115,17 @@ class GoLive {
             return false;
           }
           
-          final String name = baseUrl.substring(lastPathIndex + 1);
-          baseUrl = baseUrl.substring(0, lastPathIndex);
-          final String mergeUrl = baseUrl;
-          
-          Callable<Request> task = new Callable<Request>() {
-            @Override
-            public Request call() {
-              Request req = new Request();
-              LOG.info("Live merge " + dir.getPath() + " into " + mergeUrl);
-              final HttpSolrServer server = new HttpSolrServer(mergeUrl);
-              try {
-                CoreAdminRequest.MergeIndexes mergeRequest = new CoreAdminRequest.MergeIndexes();
-                mergeRequest.setCoreName(name);
-                mergeRequest.setIndexDirs(Arrays.asList(dir.getPath().toString() + "/data/index"));
-                try {
-                  mergeRequest.process(server);
-                  req.success = true;
-                } catch (SolrServerException e) {
-                  req.e = e;
-                  return req;
-                } catch (IOException e) {
-                  req.e = e;
-                  return req;
-                }
-              } finally {
-                server.shutdown();
-              }
-              return req;
-            }
-          };
-          pending.add(completionService.submit(task));
+          String name = baseUrl.substring(lastPathIndex + 1);
+          baseUrl = baseUrl.substring(0, lastPathIndex); // the node that hosts the core
+          tasks.add(new MergeTask(dir, baseUrl, name, indexSize));
         }
       }
       
-      while (pending != null && pending.size() > 0) {
-        try {
-          Future<Request> future = completionService.take();
-          if (future == null) break;
-          pending.remove(future);
-          
-          try {
-            Request req = future.get();
-            
-            if (!req.success) {
-              // failed
-              LOG.error("A live merge command failed", req.e);
-              return false;
-            }
-            
-          } catch (ExecutionException e) {
-            LOG.error("Error sending live merge command", e);
-            return false;
-          }
-          
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-          LOG.error("Live merge process interrupted", e);
-          return false;
-        }
+      if (!runMerges(tasks, options, executor)) {
+        return false;
       }
       
-      cnt = -1;
-      
-      
-      try {
-        LOG.info("Committing live merge...");
-        if (options.zkHost != null) {
-          CloudSolrServer server = new CloudSolrServer(options.zkHost);
-          server.setDefaultCollection(options.collection);
-          server.commit();
-          server.shutdown();
-        } else {
-          for (List<String> urls : options.shardUrls) {
-            for (String url : urls) {
-              // TODO: we should do these concurrently
-              HttpSolrServer server = new HttpSolrServer(url);
-              server.commit();
-              server.shutdown();
-            }
-          }
-        }
-        LOG.info("Done committing live merge");
-      } catch (Exception e) {
-        LOG.error("Error sending commits to live Solr cluster", e);
+      if (!commit(options, executor)) {
         return false;
       }
 
@@ -184,6 +144,216 @@ class GoLive {
     
     // if an output dir does not exist, we should fail and do no merge?
   }
+  
+  private long getIndexSize(FileStatus dir, FileSystem fs) {
+    try {
+      return fs.getContentSummary(new Path(dir.getPath(), "data/index")).getLength();
+    } catch (IOException e) {
+      LOG.warn("Cannot determine index size of " + dir.getPath(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Runs the given live merges on the executor, with at most goLiveThreadsPerNode merges per Solr
+   * node at any time, largest shards first, retrying transient failures after a backoff delay.
+   */
+  private boolean runMerges(List<MergeTask> tasks, Options options, ExecutorService executor) {
+    // start the largest merges first, so they don't end up as stragglers
+    Collections.sort(tasks, new Comparator<MergeTask>() {
+      @Override
+      public int compare(MergeTask t1, MergeTask t2) {
+        return t1.indexSize > t2.indexSize ? -1 : (t1.indexSize < t2.indexSize ? 1 : 0);
+      }
+    });
+    LOG.info("Live merging {} shard replicas with {} threads and at most {} threads per node", 
+        new Object[] {tasks.size(), options.goLiveThreads, options.goLiveThreadsPerNode});
+    
+    CompletionService<MergeTask> completionService = new ExecutorCompletionService<MergeTask>(executor);
+    LinkedList<MergeTask> queue = new LinkedList<MergeTask>(tasks);
+    Map<String, Integer> runningPerNode = new HashMap<String, Integer>();
+    int running = 0;
+    while (queue.size() > 0 || running > 0) {
+      long now = System.currentTimeMillis();
+      long nextRetryTime = Long.MAX_VALUE;
+      Iterator<MergeTask> iter = queue.iterator();
+      while (running < options.goLiveThreads && iter.hasNext()) {
+        MergeTask task = iter.next();
+        Integer nodeRunning = runningPerNode.get(task.nodeUrl);
+        if (nodeRunning == null) {
+          nodeRunning = 0;
+        }
+        if (nodeRunning >= options.goLiveThreadsPerNode) {
+          continue; // node is busy
+        }
+        if (task.nextAttemptTime > now) {
+          nextRetryTime = Math.min(nextRetryTime, task.nextAttemptTime); // still backing off
+          continue;
+        }
+        iter.remove();
+        runningPerNode.put(task.nodeUrl, nodeRunning + 1);
+        running++;
+        completionService.submit(task);
+      }
+      
+      Future<MergeTask> future;
+      try {
+        if (running == 0) {
+          Thread.sleep(Math.max(1, nextRetryTime - now));
+          continue;
+        } else if (nextRetryTime == Long.MAX_VALUE) {
+          future = completionService.take();
+        } else {
+          future = completionService.poll(Math.max(1, nextRetryTime - now), TimeUnit.MILLISECONDS);
+          if (future == null) {
+            continue;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.error("Live merge process interrupted", e);
+        return false;
+      }
+      
+      MergeTask task;
+      try {
+        task = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.error("Live merge process interrupted", e);
+        return false;
+      } catch (ExecutionException e) {
+        LOG.error("Error sending live merge command", e);
+        return false;
+      }
+      running--;
+      runningPerNode.put(task.nodeUrl, runningPerNode.get(task.nodeUrl) - 1);
+      
+      if (task.e != null) {
+        // a live merge isn't idempotent, so only retry if the request cannot have reached the core
+        if (isTransient(task.e) && task.attempts <= options.goLiveRetries) {
+          long delay = getRetryDelayMillis(task.attempts);
+          LOG.warn("Live merge of " + task.dir.getPath() + " into " + task.nodeUrl + "/" + task.coreName 
+              + " failed transiently, retrying in " + delay + " ms", task.e);
+          task.nextAttemptTime = System.currentTimeMillis() + delay;
+          queue.addFirst(task);
+        } else {
+          // failed
+          LOG.error("A live merge command failed", task.e);
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+  
+  private boolean commit(final Options options, ExecutorService executor) {
+    LOG.info("Committing live merge...");
+    List<Callable<Void>> commits = new ArrayList<Callable<Void>>();
+    if (options.zkHost != null) {
+      commits.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          CloudSolrServer server = new CloudSolrServer(options.zkHost);
+          try {
+            server.setDefaultCollection(options.collection);
+            commitWithRetries(server, options.goLiveRetries);
+          } finally {
+            server.shutdown();
+          }
+          return null;
+        }
+      });
+    } else {
+      for (List<String> urls : options.shardUrls) {
+        for (final String url : urls) {
+          commits.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              SolrServer server = createSolrServer(url);
+              try {
+                commitWithRetries(server, options.goLiveRetries);
+              } finally {
+                server.shutdown();
+              }
+              return null;
+            }
+          });
+        }
+      }
+    }
+    
+    try {
+      for (Future<Void> future : executor.invokeAll(commits)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.error("Live merge process interrupted", e);
+      return false;
+    } catch (ExecutionException e) {
+      LOG.error("Error sending commits to live Solr cluster", e.getCause());
+      return false;
+    }
+    LOG.info("Done committing live merge");
+    return true;
+  }
+  
+  /** 
+   * A commit is idempotent, hence can be retried after any transient or non-transient failure, except 
+   * for a request that the server rejects as a client error
+   */
+  private void commitWithRetries(SolrServer server, int retries) 
+      throws SolrServerException, IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        server.commit();
+        return;
+      } catch (SolrServerException e) {
+        if (attempt > retries) {
+          throw e;
+        }
+        LOG.warn("Commit failed, retrying", e);
+      } catch (IOException e) {
+        if (attempt > retries) {
+          throw e;
+        }
+        LOG.warn("Commit failed, retrying", e);
+      } catch (SolrException e) { // e.g. a RemoteSolrException with a 5xx status code
+        if (attempt > retries || e.code() < 500) {
+          throw e;
+        }
+        LOG.warn("Commit failed, retrying", e);
+      }
+      Thread.sleep(getRetryDelayMillis(attempt));
+    }
+  }
+  
+  /** Returns the exponential backoff delay before the retry of the given failed attempt */
+  long getRetryDelayMillis(int attempt) {
+    return Math.min(maxRetryDelayMillis, initialRetryDelayMillis << Math.min(attempt - 1, 16));
+  }
+  
+  /** Returns a server for the given Solr node or core URL; visible for testing */
+  SolrServer createSolrServer(String url) {
+    return new HttpSolrServer(url);
+  }
+  
+  /**
+   * Returns true if the given failure indicates that the Solr node could not be reached or was
+   * temporarily unavailable, as opposed to having failed to process the request.
+   */
+  static boolean isTransient(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof ConnectException || t instanceof ConnectTimeoutException) {
+        return true;
+      }
+      if (t instanceof SolrException && ((SolrException) t).code() == ErrorCode.SERVICE_UNAVAILABLE.code) {
+        return true;
+      }
+    }
+    return false;
+  }
 
   private void shutdownNowAndAwaitTermination(ExecutorService pool) {
     pool.shutdown(); // Disable new tasks from being submitted
@@ -204,9 +374,49 @@ class GoLive {
   }
   
   
-  private static final class Request {
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Merges one output shard into one target core; may be run several times if retried */
+  private final class MergeTask implements Callable<MergeTask> {
+    
+    final FileStatus dir;
+    final String nodeUrl;
+    final String coreName;
+    final long indexSize;
+    int attempts = 0;
+    long nextAttemptTime = 0;
     Exception e;
-    boolean success = false;
+    
+    public MergeTask(FileStatus dir, String nodeUrl, String coreName, long indexSize) {
+      this.dir = dir;
+      this.nodeUrl = nodeUrl;
+      this.coreName = coreName;
+      this.indexSize = indexSize;
+    }
+    
+    @Override
+    public MergeTask call() {
+      attempts++;
+      e = null;
+      LOG.info("Live merge " + dir.getPath() + " into " + nodeUrl);
+      SolrServer server = createSolrServer(nodeUrl);
+      try {
+        CoreAdminRequest.MergeIndexes mergeRequest = new CoreAdminRequest.MergeIndexes();
+        mergeRequest.setCoreName(coreName);
+        mergeRequest.setIndexDirs(Arrays.asList(dir.getPath().toString() + "/data/index"));
+        mergeRequest.process(server);
+      } catch (SolrServerException e) {
+        this.e = e;
+      } catch (IOException e) {
+        this.e = e;
+      } catch (SolrException e) {
+        this.e = e;
+      } finally {
+        server.shutdown();
+      }
+      return this;
+    }
   }
 
 }
@@ -16,8 +16,13 @@
  */
 package org.apache.solr.hadoop;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.util.Progressable;
@@ -25,8 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class runs a background thread that once every 60 seconds checks to see if
- * a progress report is needed. If a report is needed it is issued.
+ * This class periodically checks to see if a progress report is needed. If a report is needed it
+ * is issued.
  * 
  * A simple counter {@link #threadsNeedingHeartBeat} handles the number of
  * threads requesting a heart beat.
@@ -42,39 +47,74 @@ import org.slf4j.LoggerFactory;
  *    }
  * </pre>
  * 
- * 
+ * All instances share a single JVM wide daemon thread that checks each instance every 10 seconds,
+ * so requesting and cancelling a heart beat costs just one atomic operation each. The check also
+ * computes the throughput recorded via {@link #addThroughput(long, long)} since the previous check,
+ * which the next call to {@link #addThroughput(long, long)} then reports in the task status. The
+ * status is thus only ever set from the threads doing the work, and only while work is flowing, so
+ * it doesn't overwrite the status of later phases.
  */
-public class HeartBeater extends Thread {
+public class HeartBeater {
   
   public static Logger LOG = LoggerFactory.getLogger(HeartBeater.class);
 
   /**
-   * count of threads asking for heart beat, at 0 no heart beat done. This could
-   * be an atomic long but then missmatches in need/cancel could result in
-   * negative counts.
+   * count of threads asking for heart beat, at 0 no heart beat done. Mismatches in need/cancel are
+   * detected and ignored rather than resulting in negative counts.
    */
-  private volatile int threadsNeedingHeartBeat = 0;
+  private final AtomicInteger threadsNeedingHeartBeat = new AtomicInteger(0);
 
-  private Progressable progress;
+  private volatile Progressable progress;
 
   /**
    * The amount of time to wait between checks for the need to issue a heart
    * beat. In milliseconds.
    */
-  private final long waitTimeMs = TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+  private static final long WAIT_TIME_MS = TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS);
+  
+  private final AtomicLong numDocs = new AtomicLong(0);
+  private final AtomicLong numBytes = new AtomicLong(0);
+  
+  // only accessed by the shared heart beat thread:
+  private long lastNumDocs = 0;
+  private long lastNumBytes = 0;
+  private long lastCheckTime = System.nanoTime();
   
-  private final CountDownLatch isClosing = new CountDownLatch(1);
+  /** Throughput status computed by the shared heart beat thread, not yet published by a task thread */
+  private final AtomicReference<String> pendingStatus = new AtomicReference<String>();
+  
+  private final ScheduledFuture<?> future;
+  
+  private static ScheduledThreadPoolExecutor scheduler; // guarded by HeartBeater.class
 
   /**
-   * Create the heart beat object thread set it to daemon priority and start the
-   * thread. When the count in {@link #threadsNeedingHeartBeat} is positive, the
-   * heart beat will be issued on the progress object every 60 seconds.
+   * Create the heart beat object and register it with the shared heart beat thread. When the count
+   * in {@link #threadsNeedingHeartBeat} is positive, the heart beat will be issued on the progress
+   * object every 10 seconds.
    */
   public HeartBeater(Progressable progress) {
-    setDaemon(true);
     this.progress = progress;
     LOG.info("Heart beat reporting class is " + progress.getClass().getName());
-    start();
+    this.future = getScheduler().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        check();
+      }
+    }, WAIT_TIME_MS, WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+  }
+  
+  private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+    if (scheduler == null) {
+      scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "HeartBeater");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return scheduler;
   }
 
   public Progressable getProgress() {
@@ -85,48 +125,37 @@ public class HeartBeater extends Thread {
     this.progress = progress;
   }
 
-  @Override
-  public void run() {
-    LOG.info("HeartBeat thread running");
-    while (true) {
-      try {
-        synchronized (this) {
-          if (threadsNeedingHeartBeat > 0) {
-            progress.progress();
-            if (LOG.isInfoEnabled()) {
-              LOG.info(String.format("Issuing heart beat for %d threads",
-                  threadsNeedingHeartBeat));
-            }
-          } else {
-            if (LOG.isInfoEnabled()) {
-              LOG.info(String.format("heartbeat skipped count %d",
-                  threadsNeedingHeartBeat));
-            }
-          }
-        }
-        if (isClosing.await(waitTimeMs, TimeUnit.MILLISECONDS)) {
-          return;
-        }
-      } catch (Throwable e) {
-        LOG.error("HeartBeat throwable", e);
+  private void check() {
+    try {
+      int threads = threadsNeedingHeartBeat.get();
+      if (threads > 0) {
+        progress.progress();
+        LOG.debug("Issuing heart beat for {} threads", threads);
+      } else {
+        LOG.debug("heartbeat skipped count {}", threads);
+      }
+      
+      long now = System.nanoTime();
+      long docs = numDocs.get();
+      long bytes = numBytes.get();
+      if (docs != lastNumDocs || bytes != lastNumBytes) {
+        double secs = Math.max(1, now - lastCheckTime) / 1.0e9;
+        pendingStatus.set(String.format("Throughput: %.1f docs/sec, %.2f MB/sec", 
+            (docs - lastNumDocs) / secs, (bytes - lastNumBytes) / secs / (1024 * 1024)));
       }
+      lastNumDocs = docs;
+      lastNumBytes = bytes;
+      lastCheckTime = now;
+    } catch (Throwable e) {
+      LOG.error("HeartBeat throwable", e);
     }
   }
 
   /**
-   * inform the background thread that heartbeats are to be issued. Issue a
-   * heart beat also
+   * inform the background thread that heartbeats are to be issued.
    */
-  public synchronized void needHeartBeat() {
-    threadsNeedingHeartBeat++;
-    // Issue a progress report right away,
-    // just in case the the cancel comes before the background thread issues a
-    // report.
-    // If enough cases like this happen the 600 second timeout can occur
-    progress.progress();
-    if (threadsNeedingHeartBeat == 1) {
-      // this.notify(); // wake up the heartbeater
-    }
+  public void needHeartBeat() {
+    threadsNeedingHeartBeat.incrementAndGet();
   }
 
   /**
@@ -134,15 +163,33 @@ public class HeartBeater extends Thread {
    * This must be called at some point after each {@link #needHeartBeat()}
    * request.
    */
-  public synchronized void cancelHeartBeat() {
-    if (threadsNeedingHeartBeat > 0) {
-      threadsNeedingHeartBeat--;
-    } else {
+  public void cancelHeartBeat() {
+    if (threadsNeedingHeartBeat.decrementAndGet() < 0) {
+      threadsNeedingHeartBeat.incrementAndGet();
       Exception e = new Exception("Dummy");
       e.fillInStackTrace();
       LOG.warn("extra call to cancelHeartBeat", e);
     }
   }
+  
+  /**
+   * Records the given number of documents and bytes as processed, for throughput reporting. Must be
+   * called from a thread that may access the task context, as it publishes any pending status.
+   */
+  public void addThroughput(long docs, long bytes) {
+    if (docs != 0) {
+      numDocs.addAndGet(docs);
+    }
+    if (bytes != 0) {
+      numBytes.addAndGet(bytes);
+    }
+    if (pendingStatus.get() != null) { // cheap volatile read in the common case
+      String status = pendingStatus.getAndSet(null);
+      if (status != null) {
+        setStatus(status);
+      }
+    }
+  }
 
   public void setStatus(String status) {
     if (progress instanceof TaskInputOutputContext) {
@@ -152,6 +199,8 @@ public class HeartBeater extends Thread {
   
   /** Releases any resources */
   public void close() {
-    isClosing.countDown();
+    future.cancel(false);
+    getScheduler().purge(); // don't keep the cancelled tasks of closed instances queued
+    pendingStatus.set(null);
   }
 }
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * The format of the lines of the list of files to index. A line is either a plain path, or a path
+ * followed by tab separated metadata of the file, in the form
+ * <code>path TAB length [TAB modificationTime TAB octalPermission TAB owner TAB group]</code>.
+ * 
+ * Carrying the status of each file allows mappers to populate the file metadata fields without
+ * asking the NameNode once more for each file; plain paths remain valid in input lists supplied
+ * by the user. Tabs within paths are tolerated as long as the line can't be mistaken for a line
+ * with metadata.
+ */
+public final class InputFileManifest {
+
+  /**
+   * If true MapReduceIndexerTool writes the status of each file found in input dirs into the list
+   * of files to index; a custom mapper can use {@link #getPath(String)} to extract the path from a
+   * line. Defaults to true if the mapper is a MorphlineMapper, and to false otherwise, in which case
+   * each line is just a path.
+   */
+  public static final String IS_WRITING_FILE_STATUS = InputFileManifest.class.getName() + ".writeFileStatus";
+  
+  static final char SEPARATOR = '\t';
+  
+  private static final int NUM_METADATA_FIELDS = 5;
+
+  private InputFileManifest() {}
+  
+  /** Returns the line that describes the given file, including its status */
+  public static String formatLine(FileStatus stats) {
+    StringBuilder buf = new StringBuilder();
+    buf.append(stats.getPath().toString());
+    buf.append(SEPARATOR).append(stats.getLen());
+    buf.append(SEPARATOR).append(stats.getModificationTime());
+    buf.append(SEPARATOR).append(Integer.toOctalString(stats.getPermission().toShort()));
+    buf.append(SEPARATOR).append(stats.getOwner());
+    buf.append(SEPARATOR).append(stats.getGroup());
+    return buf.toString();
+  }
+
+  /** Returns the path part of the given line, stripping the metadata, if any */
+  public static String getPath(String line) {
+    return split(line)[0];
+  }
+  
+  /** Returns the length of the file, or -1 if the line doesn't carry a length */
+  public static long getLength(String line) {
+    String[] fields = split(line);
+    return fields.length > 1 ? Long.parseLong(fields[1]) : -1;
+  }
+  
+  /**
+   * Returns the status of the file, or null if the line doesn't carry a complete status; replication
+   * factor, block size and access time aren't carried and are reported as zero
+   */
+  public static FileStatus getFileStatus(String line) {
+    String[] fields = split(line);
+    if (fields.length <= 2) {
+      return null;
+    }
+    return new FileStatus(
+        Long.parseLong(fields[1]), 
+        false, 
+        0, 
+        0, 
+        Long.parseLong(fields[2]), 
+        0, 
+        new FsPermission((short) Integer.parseInt(fields[3], 8)), 
+        fields[4], 
+        fields[5], 
+        new Path(fields[0]));
+  }
+  
+  /** Returns [path] or [path, length] or [path, length, modificationTime, permission, owner, group] */
+  private static String[] split(String line) {
+    int[] separators = new int[NUM_METADATA_FIELDS]; // from right to left
+    int numSeparators = 0;
+    int end = line.length();
+    while (numSeparators < NUM_METADATA_FIELDS) {
+      int i = line.lastIndexOf(SEPARATOR, end - 1);
+      if (i < 0) {
+        break;
+      }
+      separators[numSeparators++] = i;
+      end = i;
+    }
+    
+    if (numSeparators == NUM_METADATA_FIELDS) {
+      String length = line.substring(separators[4] + 1, separators[3]);
+      String modificationTime = line.substring(separators[3] + 1, separators[2]);
+      String permission = line.substring(separators[2] + 1, separators[1]);
+      if (isNumber(length, 10) && isNumber(modificationTime, 10) && isNumber(permission, 8)) {
+        return new String[] {
+            line.substring(0, separators[4]),
+            length,
+            modificationTime,
+            permission,
+            line.substring(separators[1] + 1, separators[0]),
+            line.substring(separators[0] + 1) };
+      }
+    }
+    
+    if (numSeparators > 0) {
+      String length = line.substring(separators[0] + 1);
+      if (isNumber(length, 10)) {
+        return new String[] { line.substring(0, separators[0]), length };
+      }
+    }
+    return new String[] { line }; // any tabs are part of the path
+  }
+  
+  private static boolean isNumber(String str, int radix) {
+    if (str.length() == 0 || str.length() > 18) {
+      return false;
+    }
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c < '0' || c >= '0' + radix) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+}
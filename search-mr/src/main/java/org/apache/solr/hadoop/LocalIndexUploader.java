@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.index.IndexFileNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the files of an index that is being built on local disk to a directory on HDFS, using a
+ * pool of threads.
+ * 
+ * Lucene never modifies a file once it has been closed, so the files of each commit point can be
+ * uploaded while indexing continues. The segments_N and segments.gen files, which make the index
+ * visible to readers, are only uploaded by {@link #finish(Collection)}, after all other files of
+ * the final commit have arrived. Uploaded files that are no longer referenced by the final commit
+ * (e.g. because their segments were merged away) are then removed again.
+ */
+final class LocalIndexUploader {
+  
+  private final File localDir;
+  private final FileSystem fs;
+  private final Path remoteDir;
+  private final Configuration conf;
+  private final ExecutorService executor;
+  private final Map<String, Future<?>> uploads = new HashMap<String, Future<?>>();
+  
+  private static final Logger LOG = LoggerFactory.getLogger(LocalIndexUploader.class);
+
+  public LocalIndexUploader(File localDir, FileSystem fs, Path remoteDir, int numThreads, Configuration conf) {
+    this.localDir = localDir;
+    this.fs = fs;
+    this.remoteDir = remoteDir;
+    this.conf = conf;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+  }
+  
+  /**
+   * Starts uploading the given (immutable) index files in the background, skipping files that have
+   * already been uploaded; returns the pending uploads of the given files.
+   */
+  public synchronized List<Future<?>> upload(Collection<String> fileNames) {
+    List<Future<?>> futures = new ArrayList<Future<?>>(fileNames.size());
+    for (String fileName : fileNames) {
+      if (isSegmentsFile(fileName)) {
+        continue;
+      }
+      Future<?> future = uploads.get(fileName);
+      if (future == null) {
+        future = executor.submit(new CopyTask(fileName));
+        uploads.put(fileName, future);
+      }
+      futures.add(future);
+    }
+    return futures;
+  }
+  
+  /**
+   * Waits for the files of the given final commit to be uploaded, then uploads its segments file(s)
+   * and deletes uploaded files that the final commit doesn't reference.
+   */
+  public void finish(Collection<String> finalCommitFileNames) throws IOException {
+    long start = System.currentTimeMillis();
+    int numDeleted = 0;
+    try {
+      for (Future<?> future : upload(finalCommitFileNames)) {
+        waitFor(future);
+      }
+      Set<String> obsoleteFileNames;
+      synchronized (this) {
+        obsoleteFileNames = new HashSet<String>(uploads.keySet());
+      }
+      obsoleteFileNames.removeAll(finalCommitFileNames);
+      for (String fileName : obsoleteFileNames) {
+        waitFor(uploads.get(fileName));
+        fs.delete(new Path(remoteDir, fileName), false);
+        numDeleted++;
+      }
+      
+      // segments_N must only become visible once everything it refers to is in place
+      for (String fileName : finalCommitFileNames) {
+        if (isSegmentsFile(fileName)) {
+          new CopyTask(fileName).call();
+        }
+      }
+      File segmentsGen = new File(localDir, IndexFileNames.SEGMENTS_GEN);
+      if (segmentsGen.exists() && !finalCommitFileNames.contains(IndexFileNames.SEGMENTS_GEN)) {
+        new CopyTask(IndexFileNames.SEGMENTS_GEN).call();
+      }
+    } finally {
+      close();
+    }
+    LOG.info("Uploaded {} index files from {} to {} (deleted {} obsolete files) in {} ms", new Object[] {
+        finalCommitFileNames.size(), localDir, remoteDir, numDeleted,
+        System.currentTimeMillis() - start });
+  }
+  
+  /** Stops all pending uploads */
+  public void close() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private void waitFor(Future<?> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while uploading index files to " + remoteDir, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Cannot upload index files to " + remoteDir, cause);
+    }
+  }
+  
+  private static boolean isSegmentsFile(String fileName) {
+    return fileName.startsWith(IndexFileNames.SEGMENTS);
+  }
+  
+
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  private final class CopyTask implements Callable<Void> {
+    
+    private final String fileName;
+    
+    public CopyTask(String fileName) {
+      this.fileName = fileName;
+    }
+    
+    @Override
+    public Void call() throws IOException {
+      File src = new File(localDir, fileName);
+      Path dst = new Path(remoteDir, fileName);
+      LOG.debug("Uploading {} to {}", src, dst);
+      if (!FileUtil.copy(src, fs, dst, false, conf)) {
+        throw new IOException("Cannot upload " + src + " to " + dst);
+      }
+      return null;
+    }
+  }
+  
+}
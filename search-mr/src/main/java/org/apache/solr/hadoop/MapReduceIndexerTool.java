@@ -29,6 +29,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -55,6 +56,7 @@ import net.sourceforge.argparse4j.inf.Namespace;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -67,6 +69,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
@@ -103,6 +106,9 @@ public class MapReduceIndexerTool extends Configured implements Tool {
   
   private static final String FULL_INPUT_LIST = "full-input-list.txt";
   
+  // same as JobConf.setOutputValueGroupingComparator() 
+  private static final String GROUPING_COMPARATOR_CLASS_ATTR = "mapred.output.value.groupfn.class";
+  
   private static final Logger LOG = LoggerFactory.getLogger(MapReduceIndexerTool.class);
 
   
@@ -334,7 +340,9 @@ public class MapReduceIndexerTool extends Configured implements Tool {
             "recent to most recent (partial) update. The caller of this interface (i.e. the Hadoop Reducer) will then " +
             "apply the updates to Solr in the order returned by the orderUpdates() method.\n" +
             "The default RetainMostRecentUpdateConflictResolver implementation ignores all but the most recent document " +
-            "version, based on a configurable numeric Solr field, which defaults to the file_last_modified timestamp");
+            "version, based on a configurable numeric Solr field, which defaults to the file_last_modified timestamp.\n" +
+            "The RetainMostRecentUpdateConflictResolver is also applied on the map side, as a combiner, which " +
+            "discards duplicate and outdated document versions before the shuffle.");
       
       Argument mappersArg = parser.addArgument("--mappers")
         .metavar("INTEGER")
@@ -344,6 +352,16 @@ public class MapReduceIndexerTool extends Configured implements Tool {
         .help("Tuning knob that indicates the maximum number of MR mapper tasks to use. -1 indicates use all map slots " +
         		  "available on the cluster.");
   
+      Argument mapperThreadsArg = parser.addArgument("--mapper-threads")
+        .metavar("INTEGER")
+        .type(Integer.class)
+        .choices(new RangeArgumentChoice(1, Integer.MAX_VALUE))
+        .setDefault(1)
+        .help("Tuning knob that indicates the number of threads that each MR mapper task uses to process files in " +
+              "parallel. Each thread runs its own instance of the mapper, including its own compiled morphline, and " +
+              "the documents emitted by all threads are funneled into the task output. This allows for fewer but " +
+              "larger map containers that utilize many CPU cores, at the cost of more memory per container.");
+  
       Argument reducersArg = parser.addArgument("--reducers")
         .metavar("INTEGER")
         .type(Integer.class)
@@ -360,6 +378,9 @@ public class MapReduceIndexerTool extends Configured implements Tool {
             "merges the output of said large number of reducers to the number of shards expected by the user, " +
             "again by utilizing more available parallelism on the cluster.");
 
+      // The default fanout is clamped to reducers/shards, which merges the whole subtree of each output 
+      // shard within a single mtree merge job, each of whose tasks bulk merges its input shards with 
+      // TreeMergeMapper.TREE_MERGE_THREADS threads. Smaller fanouts run one job per mtree level.
       Argument fanoutArg = parser.addArgument("--fanout")
         .metavar("INTEGER")
         .type(Integer.class)
@@ -488,6 +509,23 @@ public class MapReduceIndexerTool extends Configured implements Tool {
         .setDefault(1000)
         .help("Tuning knob that indicates the maximum number of live merges to run in parallel at one time.");
       
+      Argument goLiveThreadsPerNodeArg = goLiveGroup.addArgument("--go-live-threads-per-node")
+        .metavar("INTEGER")
+        .type(Integer.class)
+        .choices(new RangeArgumentChoice(1, Integer.MAX_VALUE))
+        .setDefault(2)
+        .help("Tuning knob that indicates the maximum number of live merges to run in parallel at one time " +
+              "into the cores of any single Solr node. Live merges are grouped by the node that hosts the target " +
+              "core, and the largest shards are merged first.");
+      
+      Argument goLiveRetriesArg = goLiveGroup.addArgument("--go-live-retries")
+        .metavar("INTEGER")
+        .type(Integer.class)
+        .choices(new RangeArgumentChoice(0, Integer.MAX_VALUE))
+        .setDefault(3)
+        .help("Number of times a live merge or commit is retried, with exponential backoff, after a transient " +
+              "failure, i.e. if the Solr node could not be connected to or was temporarily unavailable.");
+      
       // trailing positional arguments
       Argument inputFilesArg = parser.addArgument("input-files")
         .metavar("HDFS_URI")
@@ -519,6 +557,7 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       opts.inputFiles = ns.getList(inputFilesArg.getDest());
       opts.outputDir = (Path) ns.get(outputDirArg.getDest());
       opts.mappers = ns.getInt(mappersArg.getDest());
+      opts.mapperThreads = ns.getInt(mapperThreadsArg.getDest());
       opts.reducers = ns.getInt(reducersArg.getDest());
       opts.updateConflictResolver = ns.getString(updateConflictResolverArg.getDest());
       opts.fanout = ns.getInt(fanoutArg.getDest());
@@ -534,6 +573,8 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       opts.shardUrls = buildShardUrls(ns.getList(shardUrlsArg.getDest()), opts.shards);
       opts.goLive = ns.getBoolean(goLiveArg.getDest());
       opts.goLiveThreads = ns.getInt(goLiveThreadsArg.getDest());
+      opts.goLiveThreadsPerNode = ns.getInt(goLiveThreadsPerNodeArg.getDest());
+      opts.goLiveRetries = ns.getInt(goLiveRetriesArg.getDest());
       opts.collection = ns.getString(collectionArg.getDest());
 
       try {
@@ -594,11 +635,14 @@ public class MapReduceIndexerTool extends Configured implements Tool {
     String collection;
     String zkHost;
     Integer goLiveThreads;
+    int goLiveThreadsPerNode;
+    int goLiveRetries;
     List<List<String>> shardUrls;
     List<Path> inputLists;
     List<Path> inputFiles;
     Path outputDir;
     int mappers;
+    int mapperThreads;
     int reducers;
     String updateConflictResolver;
     int fanout;
@@ -731,9 +775,14 @@ public class MapReduceIndexerTool extends Configured implements Tool {
     LOG.info("Done. Randomizing list of {} input files took {} secs", numFiles, secs);
     
     
-    job.setInputFormatClass(NLineInputFormat.class);
+    if (job.getConfiguration().get(JobContext.INPUT_FORMAT_CLASS_ATTR) == null) { // enable customization
+      job.setInputFormatClass(NLineInputFormat.class);
+    }
     NLineInputFormat.addInputPath(job, outputStep2Dir);
     NLineInputFormat.setNumLinesPerSplit(job, numLinesPerSplit);    
+    if (isBalancingSplits(job.getConfiguration())) {
+      job.getConfiguration().setInt(BalancedFileListInputFormat.NUM_SPLITS, realMappers);
+    }
     FileOutputFormat.setOutputPath(job, outputReduceDir);
     
     String mapperClass = job.getConfiguration().get(JobContext.MAP_CLASS_ATTR);
@@ -742,15 +791,35 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       mapperClass = clazz.getName();
       job.setMapperClass(clazz);
     }
+    if (options.mapperThreads > 1) {
+      // run one mapper instance per thread within each map task, funneling their output through a synchronized writer
+      Class clazz = job.getMapperClass();
+      MultithreadedMapper.setMapperClass(job, clazz);
+      MultithreadedMapper.setNumberOfThreads(job, options.mapperThreads);
+      job.setMapperClass(MultithreadedMapper.class);
+      LOG.info("Using {} threads per mapper task", options.mapperThreads);
+    }
     job.setJobName(getClass().getName() + "/" + Utils.getShortClassName(mapperClass));
     
     if (job.getConfiguration().get(JobContext.REDUCE_CLASS_ATTR) == null) { // enable customization
       job.setReducerClass(SolrReducer.class);
     }
+    if (job.getConfiguration().get(SolrReducer.SECONDARY_SORT_FIELD_NAME) != null
+        && job.getConfiguration().get(GROUPING_COMPARATOR_CLASS_ATTR) == null) { // enable customization
+      // group all versions of a document into one reduce() call, regardless of the sort suffix of the key
+      job.setGroupingComparatorClass(DocumentIdGroupingComparator.class);
+    }
     if (options.updateConflictResolver == null) {
       throw new IllegalArgumentException("updateConflictResolver must not be null");
     }
     job.getConfiguration().set(SolrReducer.UPDATE_CONFLICT_RESOLVER, options.updateConflictResolver);
+    if (job.getConfiguration().get(JobContext.COMBINE_CLASS_ATTR) == null // enable customization
+        && options.updateConflictResolver.equals(RetainMostRecentUpdateConflictResolver.class.getName())) {
+      // discard duplicate and outdated document versions on the map side, prior to the shuffle.
+      // Not for the RejectingUpdateConflictResolver: a combiner that drops a rejected key only 
+      // drops the versions of one map, so a single version from another map would get indexed.
+      job.setCombinerClass(SolrCombiner.class);
+    }
     
     if (options.zkHost != null) {
       assert options.collection != null;
@@ -772,6 +841,11 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       job.getConfiguration().set(SolrCloudPartitioner.COLLECTION, options.collection);
     }
     job.getConfiguration().setInt(SolrCloudPartitioner.SHARDS, options.shards);
+    if (job.getConfiguration().get(SolrReducer.SECONDARY_SORT_FIELD_NAME) != null
+        && job.getConfiguration().get(JobContext.PARTITIONER_CLASS_ATTR) == null) { // enable customization
+      // send all versions of a document to the same reducer, regardless of the sort suffix of the key
+      job.setPartitionerClass(DocumentIdPartitioner.class);
+    }
 
     job.setOutputFormatClass(SolrOutputFormat.class);
     if (options.solrHomeDir != null) {
@@ -791,6 +865,10 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       }
     }
     
+    if (job.getConfiguration().getBoolean(CompactSolrInputDocumentSerialization.IS_ENABLED, false)) {
+      CompactSolrInputDocumentSerialization.configure(job.getConfiguration(), options.solrHomeDir);
+    }
+    
     MorphlineMapRunner runner = setupMorphline(options);
     if (options.isDryRun && runner != null) {
       LOG.info("Indexing {} files in dryrun mode", numFiles);
@@ -815,6 +893,7 @@ public class MapReduceIndexerTool extends Configured implements Tool {
     secs = (System.currentTimeMillis() - startTime) / 1000.0f;
     LOG.info("Done. Indexing {} files using {} real mappers into {} reducers took {} secs", new Object[] {numFiles, realMappers, reducers, secs});
 
+    Configuration indexingConf = job.getConfiguration();
     int mtreeMergeIterations = 0;
     if (reducers > options.shards) {
       mtreeMergeIterations = (int) Math.round(log(options.fanout, reducers / options.shards));
@@ -831,6 +910,20 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       job.setOutputKeyClass(Text.class);
       job.setOutputValueClass(NullWritable.class);    
       job.setInputFormatClass(NLineInputFormat.class);
+      if (indexingConf.get(SolrOutputFormat.getSetupOk()) != null) {
+        // ship the solr home of the indexing job, so the merges use the merge settings of its solrconfig.xml
+        for (URI archive : DistributedCache.getCacheArchives(indexingConf)) {
+          DistributedCache.addCacheArchive(archive, job.getConfiguration());
+        }
+        job.getConfiguration().set(SolrOutputFormat.ZIP_NAME, SolrOutputFormat.getZipName(indexingConf));
+        job.getConfiguration().set(SolrOutputFormat.getSetupOk(), indexingConf.get(SolrOutputFormat.getSetupOk()));
+      }
+      if (job.getConfiguration().getBoolean(TreeMergeMapper.ZERO_COPY_TREE_MERGE, false)) {
+        // a zero copy merge moves the files of its input shards, so neither a concurrent attempt nor 
+        // the retry of a failed attempt would find them anymore
+        job.setMapSpeculativeExecution(false);
+        job.getConfiguration().setInt(JobContext.MAP_MAX_ATTEMPTS, 1);
+      }
       
       Path inputStepDir = new Path(options.outputDir, "mtree-merge-input-iteration" + mtreeMergeIteration);
       fullInputList = new Path(inputStepDir, FULL_INPUT_LIST);    
@@ -888,7 +981,7 @@ public class MapReduceIndexerTool extends Configured implements Tool {
       return -1;
     }
 
-    if (options.goLive && !new GoLive().goLive(options, listSortedOutputShardDirs(outputResultsDir, fs))) {
+    if (options.goLive && !new GoLive().goLive(options, listSortedOutputShardDirs(outputResultsDir, fs), fs)) {
       return -1;
     }
     
@@ -959,7 +1052,13 @@ public class MapReduceIndexerTool extends Configured implements Tool {
               return !(path.getName().startsWith(".") || path.getName().startsWith("_")); 
             }
           };
-          numFiles += addInputFilesRecursively(inputFile, writer, inputFileFs, pathFilter);
+          int numThreads = conf.getInt(ParallelFileTreeWalker.NUM_THREADS, ParallelFileTreeWalker.DEFAULT_NUM_THREADS);
+          // a custom mapper may expect one plain path per line
+          boolean isMorphlineMapper = 
+              MorphlineMapper.class.isAssignableFrom(conf.getClass(JobContext.MAP_CLASS_ATTR, MorphlineMapper.class));
+          boolean isWritingFileStatus = conf.getBoolean(InputFileManifest.IS_WRITING_FILE_STATUS, isMorphlineMapper);
+          numFiles += new ParallelFileTreeWalker(inputFileFs, pathFilter, numThreads, isWritingFileStatus)
+              .walk(inputFile, writer);
         }
       }
 
@@ -992,22 +1091,10 @@ public class MapReduceIndexerTool extends Configured implements Tool {
     return numFiles;
   }
   
-  /**
-   * Add the specified file to the input set, if path is a directory then
-   * add the files contained therein.
-   */
-  private long addInputFilesRecursively(Path path, Writer writer, FileSystem fs, PathFilter pathFilter) throws IOException {
-    long numFiles = 0;
-    for (FileStatus stat : fs.listStatus(path, pathFilter)) {
-      LOG.debug("Adding path {}", stat.getPath());
-      if (stat.isDirectory()) {
-        numFiles += addInputFilesRecursively(stat.getPath(), writer, fs, pathFilter);
-      } else {
-        writer.write(stat.getPath().toString() + "\n");
-        numFiles++;
-      }
-    }
-    return numFiles;
+  /** Returns true if the main job assigns input files to mappers via a BalancedFileListInputFormat */
+  private static boolean isBalancingSplits(Configuration conf) {
+    Class<?> inputFormatClass = conf.getClass(JobContext.INPUT_FORMAT_CLASS_ATTR, null);
+    return inputFormatClass != null && BalancedFileListInputFormat.class.isAssignableFrom(inputFormatClass);
   }
   
   private void randomizeFewInputFiles(FileSystem fs, Path outputStep2Dir, Path fullInputList) throws IOException {    
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recursively enumerates the files below a directory tree, listing many directories concurrently
+ * via a bounded pool of threads. Each file path is streamed into the
+ * given Writer, one path per line, as soon as it has been found, so the order of the lines is
+ * undefined.
+ */
+public final class ParallelFileTreeWalker {
+  
+  /** Max number of directories that are listed concurrently */
+  public static final String NUM_THREADS = ParallelFileTreeWalker.class.getName() + ".numThreads";
+  
+  public static final int DEFAULT_NUM_THREADS = 20;
+  
+  private final FileSystem fs;
+  private final PathFilter pathFilter;
+  private final int numThreads;
+  private final boolean isWritingFileStatus;
+  
+  // guarded by this:
+  private int pendingDirs;
+  private IOException failure;
+  
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelFileTreeWalker.class);
+
+  public ParallelFileTreeWalker(FileSystem fs, PathFilter pathFilter, int numThreads) {
+    this(fs, pathFilter, numThreads, false);
+  }
+  
+  /**
+   * @param isWritingFileStatus if true, each line also carries the status of the file, in the format
+   *          of {@link InputFileManifest#formatLine(org.apache.hadoop.fs.FileStatus)}
+   */
+  public ParallelFileTreeWalker(FileSystem fs, PathFilter pathFilter, int numThreads, boolean isWritingFileStatus) {
+    this.fs = fs;
+    this.pathFilter = pathFilter;
+    this.numThreads = Math.max(1, numThreads);
+    this.isWritingFileStatus = isWritingFileStatus;
+  }
+  
+  /**
+   * Writes the paths of all files below the given path (or the path itself if it is a file) to the
+   * given writer and returns the number of files found.
+   */
+  public long walk(Path path, Writer writer) throws IOException {
+    AtomicLong numFiles = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      synchronized (this) {
+        pendingDirs = 0;
+        failure = null;
+      }
+      submit(executor, path, writer, numFiles);
+      synchronized (this) {
+        while (pendingDirs > 0 && failure == null) {
+          wait();
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while listing " + path, e);
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor, path);
+    }
+    return numFiles.get();
+  }
+  
+  /** Waits for listings still in progress after a failure, so none writes to the writer once it's closed */
+  private static void awaitTermination(ExecutorService executor, Path path) {
+    try {
+      while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        LOG.info("Waiting for the listing of {} to terminate", path);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private void submit(final ExecutorService executor, final Path dir, final Writer writer, final AtomicLong numFiles) {
+    synchronized (this) {
+      pendingDirs++;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // unlike listLocatedStatus() this doesn't fetch the block locations of each file
+          for (FileStatus stat : fs.listStatus(dir)) {
+            if (!pathFilter.accept(stat.getPath())) {
+              continue;
+            }
+            LOG.debug("Adding path {}", stat.getPath());
+            if (stat.isDirectory()) {
+              submit(executor, stat.getPath(), writer, numFiles);
+            } else {
+              String line = isWritingFileStatus 
+                  ? InputFileManifest.formatLine(stat) + "\n" 
+                  : stat.getPath().toString() + "\n";
+              synchronized (writer) {
+                writer.write(line);
+              }
+              numFiles.incrementAndGet();
+            }
+          }
+          done(null);
+        } catch (IOException e) {
+          done(e);
+        } catch (RuntimeException e) {
+          done(new IOException("Cannot list " + dir, e));
+        }
+      }
+    });
+  }
+  
+  private synchronized void done(IOException e) {
+    pendingDirs--;
+    if (e != null && failure == null) {
+      failure = e;
+    }
+    notifyAll();
+  }
+
+}
@@ -16,7 +16,10 @@
  */
 package org.apache.solr.hadoop;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,8 +29,10 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
 import org.apache.solr.common.cloud.DocCollection;
 import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.PlainIdRouter;
 import org.apache.solr.common.cloud.Slice;
 import org.apache.solr.common.params.MapSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -54,6 +59,15 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
   private int shards = 0;
   private final SolrParams emptySolrParams = new MapSolrParams(Collections.EMPTY_MAP);
   
+  /*
+   * Lookup table for the fast path: hash ranges of the active slices sorted by range.min, and the
+   * shard number of each such slice. Null if the fast path isn't applicable for the docRouter.
+   */
+  private int[] rangeMins;
+  private int[] rangeMaxs;
+  private int[] rangeShardNumbers;
+  private boolean isCompositeIdRouter;
+  
   public static final String SHARDS = SolrCloudPartitioner.class.getName() + ".shards";
   public static final String ZKHOST = SolrCloudPartitioner.class.getName() + ".zkHost";
   public static final String COLLECTION = SolrCloudPartitioner.class.getName() + ".collection";
@@ -65,7 +79,7 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
   @Override
   public void setConf(Configuration conf) {
     this.conf = conf;    
-    this.shards = conf.getInt(SHARDS, -1);
+    int shards = conf.getInt(SHARDS, -1);
     if (shards <= 0) {
       throw new IllegalArgumentException("Illegal shards: " + shards);
     }
@@ -78,7 +92,13 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
       throw new IllegalArgumentException("collection must not be null");
     }    
     LOG.info("Using SolrCloud zkHost: {}, collection: {}", zkHost, collection);
-    docCollection = new ZooKeeperInspector().extractDocCollection(zkHost, collection);
+    setDocCollection(new ZooKeeperInspector().extractDocCollection(zkHost, collection), shards);
+  }
+  
+  /** Partitions according to the given collection with the given number of shards; visible for testing */
+  void setDocCollection(DocCollection docCollection, int shards) {
+    this.docCollection = docCollection;
+    this.shards = shards;
     if (docCollection == null) {
       throw new IllegalArgumentException("docCollection must not be null");
     }
@@ -99,6 +119,50 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
       throw new IllegalArgumentException("docRouter must not be null");
     }
     LOG.info("Using SolrCloud docRouterClass: {}", docRouter.getClass());    
+    
+    isCompositeIdRouter = docRouter.getClass() == CompositeIdRouter.class;
+    if (isCompositeIdRouter || docRouter.getClass() == PlainIdRouter.class) {
+      initRangeLookupTable();
+    }
+  }
+
+  /*
+   * Precomputes a sorted table of hash ranges, which enables to find the slice for a given hash
+   * code via binary search, rather than via the linear search in HashBasedRouter.hashToSlice().
+   * Leaves the table null (i.e. uses the slow path) if the ranges are missing or overlapping.
+   */
+  private void initRangeLookupTable() {
+    List<Slice> activeSlices = new ArrayList<Slice>(docCollection.getActiveSlices());
+    for (Slice slice : activeSlices) {
+      if (slice.getRange() == null || !shardNumbers.containsKey(slice.getName())) {
+        LOG.info("Not using hash range lookup table because slice has no range: {}", slice);
+        return;
+      }
+    }
+    Collections.sort(activeSlices, new Comparator<Slice>() {
+      @Override
+      public int compare(Slice s1, Slice s2) {
+        int min1 = s1.getRange().min;
+        int min2 = s2.getRange().min;
+        return min1 < min2 ? -1 : (min1 == min2 ? 0 : 1);
+      }
+    });
+    int[] mins = new int[activeSlices.size()];
+    int[] maxs = new int[activeSlices.size()];
+    int[] shardNums = new int[activeSlices.size()];
+    for (int i = 0; i < activeSlices.size(); i++) {
+      Slice slice = activeSlices.get(i);
+      mins[i] = slice.getRange().min;
+      maxs[i] = slice.getRange().max;
+      shardNums[i] = shardNumbers.get(slice.getName());
+      if (i > 0 && mins[i] <= maxs[i - 1]) {
+        LOG.info("Not using hash range lookup table because of overlapping slice ranges: {}", activeSlices);
+        return;
+      }
+    }
+    rangeMins = mins;
+    rangeMaxs = maxs;
+    rangeShardNumbers = shardNums;
   }
 
   @Override
@@ -108,28 +172,26 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
   
   @Override
   public int getPartition(Text key, SolrInputDocumentWritable value, int numPartitions) {
-    DocRouter docRouter = docCollection.getRouter();
-    SolrInputDocument doc = value.getSolrInputDocument();
-    String keyStr = key.toString();
-    
-    // TODO: scalability: replace linear search in HashBasedRouter.hashToSlice() with binary search on sorted hash ranges
-    Slice slice = docRouter.getTargetSlice(keyStr, doc, emptySolrParams, docCollection); 
+    String keyStr = DocumentIdGroupingComparator.getDocumentId(key).toString(); // strip sort suffix, if any
+    int hashCode = Hash.murmurhash3_x86_32(keyStr, 0, keyStr.length(), 0); 
     
-//    LOG.info("slice: {}", slice);
-    if (slice == null) {
-      throw new IllegalStateException("No matching slice found! The slice seems unavailable. docRouterClass: "
-          + docRouter.getClass().getName());
+    int rootShard = -1;
+    if (rangeMins != null && !(isCompositeIdRouter && keyStr.indexOf(CompositeIdRouter.SEPARATOR) >= 0)) {
+      // fast path: for such keys the docRouter hashes the key exactly like we did above
+      rootShard = lookupShardNumber(hashCode);
+      assert rootShard < 0 || rootShard == getShardNumberSlowPath(keyStr, value);
+    }
+    if (rootShard < 0) {
+      rootShard = getShardNumberSlowPath(keyStr, value);
     }
-    int rootShard = shardNumbers.get(slice.getName());
     if (rootShard < 0 || rootShard >= shards) {
-      throw new IllegalStateException("Illegal shard number " + rootShard + " for slice: " + slice + ", docCollection: "
+      throw new IllegalStateException("Illegal shard number " + rootShard + " for key: " + keyStr + ", docCollection: "
           + docCollection);
     }      
 
     // map doc to micro shard aka leaf shard, akin to HashBasedRouter.sliceHash()
     // taking into account mtree merge algorithm
     assert numPartitions % shards == 0; // Also note that numPartitions is equal to the number of reducers
-    int hashCode = Hash.murmurhash3_x86_32(keyStr, 0, keyStr.length(), 0); 
     int offset = (hashCode & Integer.MAX_VALUE) % (numPartitions / shards);
     int microShard = (rootShard * (numPartitions / shards)) + offset;
 //    LOG.info("Subpartitions rootShard: {}, offset: {}", rootShard, offset);
@@ -139,4 +201,33 @@ public class SolrCloudPartitioner extends Partitioner<Text, SolrInputDocumentWri
     return microShard;
   }
 
+  /** Returns the shard number of the slice whose hash range includes the given hash code, or -1 if none */
+  private int lookupShardNumber(int hashCode) {
+    int i = Arrays.binarySearch(rangeMins, hashCode);
+    if (i < 0) {
+      i = -i - 2; // index of the greatest range.min that is less than hashCode
+    }
+    if (i >= 0 && hashCode <= rangeMaxs[i]) {
+      return rangeShardNumbers[i];
+    }
+    return -1;
+  }
+  
+  private int getShardNumberSlowPath(String keyStr, SolrInputDocumentWritable value) {
+    DocRouter docRouter = docCollection.getRouter();
+    SolrInputDocument doc = value.getSolrInputDocument();
+    Slice slice = docRouter.getTargetSlice(keyStr, doc, emptySolrParams, docCollection); 
+    
+//    LOG.info("slice: {}", slice);
+    if (slice == null) {
+      throw new IllegalStateException("No matching slice found! The slice seems unavailable. docRouterClass: "
+          + docRouter.getClass().getName());
+    }
+    Integer shardNumber = shardNumbers.get(slice.getName());
+    if (shardNumber == null) {
+      throw new IllegalStateException("Unknown slice: " + slice + ", docCollection: " + docCollection);
+    }
+    return shardNumber;
+  }
+
 }
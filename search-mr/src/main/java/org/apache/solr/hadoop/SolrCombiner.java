@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.hadoop.dedup.RetainMostRecentUpdateConflictResolver;
+import org.apache.solr.hadoop.dedup.UpdateConflictResolver;
+import org.kitesdk.morphline.api.ExceptionHandler;
+import org.kitesdk.morphline.base.FaultTolerance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MapReduce combiner that applies the configured {@link UpdateConflictResolver} to the updates of
+ * each unique document key within a map task's spill, i.e. before the shuffle. This way duplicate
+ * and outdated document versions are discarded early instead of being serialized and sent across
+ * the network only to be discarded by the {@link SolrReducer}.
+ * 
+ * This is only correct for resolvers whose result does not change if they are applied repeatedly
+ * to subsets of the colliding updates, such as the
+ * {@link org.apache.solr.hadoop.dedup.RetainMostRecentUpdateConflictResolver}. It is not correct
+ * for the {@link org.apache.solr.hadoop.dedup.RejectingUpdateConflictResolver}, because rejecting
+ * the colliding updates of one map task does not reject the update of the same key from another map.
+ */
+public class SolrCombiner extends Reducer<Text, SolrInputDocumentWritable, Text, SolrInputDocumentWritable> {
+
+  private UpdateConflictResolver resolver;
+  private ExceptionHandler exceptionHandler;
+  private boolean isSecondarySort;
+  
+  private static final Logger LOG = LoggerFactory.getLogger(SolrCombiner.class);
+  
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    Class<? extends UpdateConflictResolver> resolverClass = context.getConfiguration().getClass(
+        SolrReducer.UPDATE_CONFLICT_RESOLVER, RetainMostRecentUpdateConflictResolver.class, UpdateConflictResolver.class);
+    
+    this.resolver = ReflectionUtils.newInstance(resolverClass, context.getConfiguration());
+
+    this.exceptionHandler = new FaultTolerance(
+        context.getConfiguration().getBoolean(FaultTolerance.IS_PRODUCTION_MODE, false), 
+        context.getConfiguration().getBoolean(FaultTolerance.IS_IGNORING_RECOVERABLE_EXCEPTIONS, false),
+        context.getConfiguration().get(FaultTolerance.RECOVERABLE_EXCEPTION_CLASSES, SolrServerException.class.getName()));
+    
+    this.isSecondarySort = context.getConfiguration().get(SolrReducer.SECONDARY_SORT_FIELD_NAME) != null;
+  }
+
+  @Override
+  protected void reduce(Text key, Iterable<SolrInputDocumentWritable> values, Context context) throws IOException, InterruptedException {
+    // the combiner groups by the full shuffle key, so we must write the full key back, including any sort suffix
+    Text docId = isSecondarySort ? DocumentIdGroupingComparator.getDocumentId(key) : key;
+    try {
+      Iterator<SolrInputDocument> updates = resolver.orderUpdates(
+          docId, new SolrReducer.UnwrapIterator(values.iterator()), context);
+      Iterator<SolrInputDocumentWritable> iter = new SolrReducer.WrapIterator(updates);
+      while (iter.hasNext()) {
+        context.write(key, iter.next());
+      }
+    } catch (Exception e) {
+      LOG.error("Unable to combine key " + docId, e);
+      context.getCounter(getClass().getName() + ".errors", e.getClass().getName()).increment(1);
+      exceptionHandler.handleException(e, null);
+    }
+  }
+  
+}
@@ -24,9 +24,15 @@ public enum SolrCounters {
   BATCHES_WRITTEN (getClassName(SolrReducer.class) 
       + ": Number of document batches processed"),
 
+  BATCH_BYTES_WRITTEN (getClassName(SolrReducer.class) 
+      + ": Approximate number of bytes of document batches processed"),
+
   BATCH_WRITE_TIME (getClassName(SolrReducer.class) 
       + ": Time spent by reducers writing batches [ms]"),
 
+  BATCH_QUEUE_WAIT_TIME (getClassName(SolrReducer.class) 
+      + ": Time spent by reducers waiting for space in the batch queue [ms]"),
+
   PHYSICAL_REDUCER_MERGE_TIME (getClassName(SolrReducer.class)
       + ": Time spent by reducers on physical merges [ms]"),
   
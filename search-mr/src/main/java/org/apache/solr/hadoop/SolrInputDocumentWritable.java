@@ -20,14 +20,34 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.FastInputStream;
 import org.apache.solr.common.util.FastOutputStream;
 import org.apache.solr.common.util.JavaBinCodec;
 
+/**
+ * Hadoop Writable that ships a SolrInputDocument across the shuffle, encoded with JavaBin.
+ * 
+ * The stream wrappers and their buffers are kept per thread and reused across records, so
+ * (de)serializing a document only allocates a lightweight JavaBin codec per record. Instances can
+ * be reused via {@link #reset(SolrInputDocument)}, akin to how Hadoop reuses values in the reduce
+ * iterator.
+ * 
+ * If the input is a DataInputBuffer, as is the case in the shuffle, JavaBin is decoded straight
+ * from the buffer's backing byte array, without copying any bytes.
+ */
 public class SolrInputDocumentWritable implements Writable {
   private SolrInputDocument sid;
 
+  private static final ThreadLocal<CodecState> CODEC_STATE = new ThreadLocal<CodecState>() {
+    @Override
+    protected CodecState initialValue() {
+      return new CodecState();
+    }
+  };
+
   public SolrInputDocumentWritable() {
   }
 
@@ -39,6 +59,12 @@ public class SolrInputDocumentWritable implements Writable {
     return sid;
   }
 
+  /** Makes this instance wrap the given document, so the instance can be reused for many documents */
+  public SolrInputDocumentWritable reset(SolrInputDocument sid) {
+    this.sid = sid;
+    return this;
+  }
+
   @Override
   public String toString() {
     return sid.toString();
@@ -46,21 +72,91 @@ public class SolrInputDocumentWritable implements Writable {
 
   @Override
   public void write(DataOutput out) throws IOException {
-    JavaBinCodec codec = new JavaBinCodec();
-    FastOutputStream daos = FastOutputStream.wrap(DataOutputOutputStream.constructOutputStream(out));
-    codec.init(daos);
+    CodecState state = CODEC_STATE.get();
+    boolean success = false;
+    state.sink.setDataOutput(out);
     try {
-      codec.writeVal(sid);
+      try {
+        state.newWriteCodec().writeVal(sid);
+      } finally {
+        state.daos.flushBuffer();
+      }
+      success = true;
     } finally {
-      daos.flushBuffer();
+      state.sink.setDataOutput(null);
+      if (!success) {
+        CODEC_STATE.remove(); // don't leak partially buffered bytes into subsequent records
+      }
     }
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
-    JavaBinCodec codec = new JavaBinCodec();
-    UnbufferedDataInputInputStream dis = new UnbufferedDataInputInputStream(in);
-    sid = (SolrInputDocument)codec.readVal(dis);
+    if (in instanceof DataInputBuffer) {
+      readFields((DataInputBuffer) in);
+      return;
+    }
+    CodecState state = CODEC_STATE.get();
+    boolean success = false;
+    state.source.reset(in);
+    try {
+      sid = (SolrInputDocument)new JavaBinCodec().readVal(state.source);
+      success = true;
+    } finally {
+      state.source.reset(null);
+      if (!success) {
+        CODEC_STATE.remove();
+      }
+    }
+  }
+
+  private void readFields(DataInputBuffer in) throws IOException {
+    ByteArrayFastInputStream source = new ByteArrayFastInputStream(in.getData(), in.getPosition(), in.getLength());
+    sid = (SolrInputDocument)new JavaBinCodec().readVal(source);
+    int consumed = source.getPosition() - in.getPosition();
+    if (in.skipBytes(consumed) != consumed) {
+      throw new IOException("Cannot advance DataInputBuffer by " + consumed + " bytes");
+    }
+  }
+
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Stream wrappers that are reused by a thread across all records it (de)serializes */
+  private static final class CodecState {
+    
+    private final DataOutputOutputStream sink = new DataOutputOutputStream();
+    private final FastOutputStream daos = new FastOutputStream(sink);
+    private final UnbufferedDataInputInputStream source = new UnbufferedDataInputInputStream();
+    
+    /**
+     * JavaBin interns field names in a string table that lives as long as the codec, so each record
+     * gets a fresh (cheap) codec to remain decodable on its own, in whatever order records are read.
+     */
+    public JavaBinCodec newWriteCodec() {
+      JavaBinCodec codec = new JavaBinCodec();
+      codec.init(daos);
+      return codec;
+    }
+  }
+  
+  /** A FastInputStream that reads directly from (a slice of) a byte array, without copying it */
+  private static final class ByteArrayFastInputStream extends FastInputStream {
+    
+    public ByteArrayFastInputStream(byte[] buf, int start, int end) {
+      super(null, buf, start, end);
+    }
+    
+    /** Returns the index within the byte array of the next byte to be read */
+    public int getPosition() {
+      return pos;
+    }
+    
+    @Override
+    public int readWrappedStream(byte[] target, int offset, int len) {
+      return -1; // there is no more data beyond the end of the byte array
+    }
   }
 
 }
@@ -17,23 +17,114 @@
 package org.apache.solr.hadoop;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.util.Date;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.DateUtil;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
 
 public class SolrMapper<KEYIN, VALUEIN> extends Mapper<KEYIN, VALUEIN, Text, SolrInputDocumentWritable> {
   
   private Path solrHomeDir;
+  private String secondarySortFieldName;
 
   @Override
   protected void setup(Context context) throws IOException, InterruptedException {
     Utils.getLogConfigFile(context.getConfiguration());
     super.setup(context);
     solrHomeDir = SolrRecordWriter.findSolrConfig(context.getConfiguration());
+    secondarySortFieldName = context.getConfiguration().get(SolrReducer.SECONDARY_SORT_FIELD_NAME);
   }
   
   protected Path getSolrHomeDir() {
     return solrHomeDir;
   }
+  
+  /**
+   * Fails fast if {@link SolrReducer#SECONDARY_SORT_FIELD_NAME} is configured but isn't an int,
+   * long or date field of the given schema; to be called by subclasses from their setup().
+   */
+  protected void checkSecondarySortField(IndexSchema schema) {
+    if (secondarySortFieldName == null) {
+      return;
+    }
+    SchemaField field = schema.getFieldOrNull(secondarySortFieldName);
+    if (field == null) {
+      throw new IllegalArgumentException(SolrReducer.SECONDARY_SORT_FIELD_NAME + " refers to a field that is "
+          + "not defined in schema.xml: " + secondarySortFieldName);
+    }
+    FieldType type = field.getType();
+    boolean isSupported = type instanceof DateField 
+        || (type instanceof TrieField && (((TrieField) type).getType() == TrieField.TrieTypes.LONG 
+            || ((TrieField) type).getType() == TrieField.TrieTypes.INTEGER));
+    if (!isSupported) {
+      throw new IllegalArgumentException(SolrReducer.SECONDARY_SORT_FIELD_NAME + " must refer to a long, int or "
+          + "date field, but field " + secondarySortFieldName + " has type " + type.getTypeName() 
+          + " (" + type.getClass().getName() + ")");
+    }
+  }
+
+  /**
+   * Returns the shuffle key for the given document. This is the unique document key, unless
+   * {@link SolrReducer#SECONDARY_SORT_FIELD_NAME} is configured, in which case the key also
+   * contains the value of said numeric or date field, encoded such that the shuffle delivers all
+   * versions of a document to the reducer sorted ascending by that field, i.e. from least recent to
+   * most recent. Documents lacking the field are delivered first.
+   */
+  protected Text createShuffleKey(String docId, SolrInputDocument doc) {
+    if (secondarySortFieldName == null) {
+      return new Text(docId);
+    }
+    SolrInputField field = doc.getField(secondarySortFieldName);
+    return createShuffleKey(docId, secondarySortFieldName, field == null ? null : field.getFirstValue());
+  }
+  
+  static Text createShuffleKey(String docId, String secondarySortFieldName, Object value) {
+    if (docId.indexOf((char) DocumentIdGroupingComparator.KEY_SEPARATOR) >= 0) {
+      throw new IllegalArgumentException("Unique document key must not contain a NUL character when using "
+          + SolrReducer.SECONDARY_SORT_FIELD_NAME + ": " + docId);
+    }
+    StringBuilder buf = new StringBuilder(docId.length() + 17);
+    buf.append(docId);
+    buf.append((char) DocumentIdGroupingComparator.KEY_SEPARATOR);
+    if (value != null) {
+      long version = toLong(secondarySortFieldName, value);
+      version = version ^ Long.MIN_VALUE; // make unsigned byte-wise order equal to signed numeric order
+      for (int shift = 60; shift >= 0; shift -= 4) { // fixed width hex, so byte-wise order is numeric order
+        buf.append(Character.forDigit((int) (version >>> shift) & 0xF, 16));
+      }
+    }
+    return new Text(buf.toString());
+  }
+  
+  private static long toLong(String fieldName, Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value instanceof Date) {
+      return ((Date) value).getTime();
+    } else if (value instanceof CharSequence) {
+      try {
+        return Long.parseLong(value.toString());
+      } catch (NumberFormatException e) {
+        try {
+          return DateUtil.parseDate(value.toString()).getTime();
+        } catch (ParseException e2) {
+          throw new IllegalArgumentException("Value of secondary sort field " + fieldName 
+              + " is neither a long nor a date: " + value, e);
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Value of secondary sort field " + fieldName 
+          + " must be a Number, Date or String, but has type " + value.getClass().getName());
+    }
+  }
 }
@@ -80,12 +80,74 @@ public class SolrOutputFormat<K, V> extends FileOutputFormat<K, V> {
 
   public static final String SOLR_WRITER_QUEUE_SIZE = "solr.record.writer.max.queues.size";
 
+  /** Max number of bytes of the batches that are pending in the queue of the writer threads */
+  public static final String SOLR_WRITER_QUEUE_MAX_BYTES = "solr.record.writer.max.queue.bytes";
+
+  /** If true, batches pending in the queue of the writer threads are kept serialized off-heap */
+  public static final String SOLR_WRITER_QUEUE_OFF_HEAP = "solr.record.writer.queue.off.heap";
+
+  /**
+   * If true, also publish the batch size and latency distributions and the failed batches per exception
+   * class as counters, rather than just logging them on close; these can add up to about 130 counters,
+   * so mapreduce.job.counters.max needs to be raised accordingly
+   */
+  public static final String SOLR_WRITER_DETAILED_COUNTERS = "solr.record.writer.detailed.counters";
+
   static int defaultSolrBatchSize = 20;
 
   public static final String SOLR_RECORD_WRITER_BATCH_SIZE = "solr.record.writer.batch.size";
 
   public static final String SOLR_RECORD_WRITER_MAX_SEGMENTS = "solr.record.writer.maxSegments";
 
+  /**
+   * If true, adapt the number of documents per batch to the target batch bytes and latency, starting
+   * from the batch size; see {@link AdaptiveBatchSizer}
+   */
+  public static final String SOLR_RECORD_WRITER_ADAPTIVE_BATCH_SIZE = "solr.record.writer.adaptive.batch.size";
+
+  /** Approximate number of bytes at which an adaptive batch is flushed */
+  public static final String SOLR_RECORD_WRITER_TARGET_BATCH_BYTES = "solr.record.writer.target.batch.bytes";
+
+  /** Time it should take to add an adaptive batch to the index */
+  public static final String SOLR_RECORD_WRITER_TARGET_BATCH_LATENCY_MS = "solr.record.writer.target.batch.latency.ms";
+
+  /** Upper bound for the number of documents per adaptive batch */
+  public static final String SOLR_RECORD_WRITER_MAX_BATCH_SIZE = "solr.record.writer.max.batch.size";
+
+  /**
+   * If true, index documents with a plain Lucene IndexWriter instead of an EmbeddedSolrServer; see
+   * {@link DirectIndexWriterSolrServer}
+   */
+  public static final String SOLR_RECORD_WRITER_DIRECT_INDEXING = "solr.record.writer.direct.indexing";
+
+  /** RAM buffer size of the direct IndexWriter; zero or less means use the value from solrconfig.xml */
+  public static final String SOLR_RECORD_WRITER_RAM_BUFFER_SIZE_MB = "solr.record.writer.ramBufferSizeMB";
+
+  /** Max number of concurrent indexing threads of the direct IndexWriter; zero or less means use the default */
+  public static final String SOLR_RECORD_WRITER_INDEXING_THREADS = "solr.record.writer.indexing.threads";
+
+  /**
+   * If true, build the index with direct indexing on the task's local disks and stream
+   * the finished segment files to the output shard dir on HDFS
+   */
+  public static final String SOLR_RECORD_WRITER_LOCAL_BUILD = "solr.record.writer.local.build";
+
+  /** Number of threads that upload segment files of a locally built index to HDFS */
+  public static final String SOLR_RECORD_WRITER_UPLOAD_THREADS = "solr.record.writer.upload.threads";
+
+  /** How often a locally built index is committed such that its new segments can be uploaded to HDFS */
+  public static final String SOLR_RECORD_WRITER_LOCAL_BUILD_COMMIT_INTERVAL_SECS = "solr.record.writer.local.build.commit.interval.secs";
+
+  /**
+   * If true, merge down towards {@link #SOLR_RECORD_WRITER_MAX_SEGMENTS} with concurrent background
+   * merges while documents are still being indexed, such that the final optimize has little left to
+   * do; implies direct indexing
+   */
+  public static final String SOLR_RECORD_WRITER_INCREMENTAL_MERGE = "solr.record.writer.incremental.merge";
+
+  /** Number of concurrent background merge threads used for incremental merging */
+  public static final String SOLR_RECORD_WRITER_MERGE_THREADS = "solr.record.writer.merge.threads";
+
   public static String getSetupOk() {
     return SETUP_OK;
   }
@@ -113,6 +175,18 @@ public class SolrOutputFormat<K, V> extends FileOutputFormat<K, V> {
     return conf.getInt(SOLR_WRITER_QUEUE_SIZE, defaultSolrWriterQueueSize);
   }
 
+  public static long getSolrWriterQueueMaxBytes(Configuration conf) {
+    return conf.getLong(SOLR_WRITER_QUEUE_MAX_BYTES, 64 * 1024 * 1024);
+  }
+
+  public static boolean isSolrWriterQueueOffHeap(Configuration conf) {
+    return conf.getBoolean(SOLR_WRITER_QUEUE_OFF_HEAP, false);
+  }
+
+  public static boolean isSolrWriterDetailedCounters(Configuration conf) {
+    return conf.getBoolean(SOLR_WRITER_DETAILED_COUNTERS, false);
+  }
+
   /**
    * Return the file name portion of the configuration zip file, from the
    * configuration.
@@ -296,4 +370,65 @@ public class SolrOutputFormat<K, V> extends FileOutputFormat<K, V> {
     jobConf.setInt(SOLR_RECORD_WRITER_BATCH_SIZE, count);
   }
 
+  public static boolean isAdaptiveBatchSize(Configuration conf) {
+    return conf.getBoolean(SOLR_RECORD_WRITER_ADAPTIVE_BATCH_SIZE, false);
+  }
+
+  public static long getTargetBatchBytes(Configuration conf) {
+    return conf.getLong(SOLR_RECORD_WRITER_TARGET_BATCH_BYTES, 4 * 1024 * 1024);
+  }
+
+  public static long getTargetBatchLatencyMillis(Configuration conf) {
+    return conf.getLong(SOLR_RECORD_WRITER_TARGET_BATCH_LATENCY_MS, 500);
+  }
+
+  public static int getMaxBatchSize(Configuration conf) {
+    return conf.getInt(SOLR_RECORD_WRITER_MAX_BATCH_SIZE, 10000);
+  }
+
+  public static boolean isDirectIndexing(Configuration conf) {
+    return conf.getBoolean(SOLR_RECORD_WRITER_DIRECT_INDEXING, false);
+  }
+
+  public static void setDirectIndexing(boolean directIndexing, Configuration conf) {
+    conf.setBoolean(SOLR_RECORD_WRITER_DIRECT_INDEXING, directIndexing);
+  }
+
+  public static double getSolrRecordWriterRamBufferSizeMB(Configuration conf) {
+    return conf.getFloat(SOLR_RECORD_WRITER_RAM_BUFFER_SIZE_MB, -1);
+  }
+
+  public static boolean isLocalBuild(Configuration conf) {
+    return conf.getBoolean(SOLR_RECORD_WRITER_LOCAL_BUILD, false);
+  }
+
+  public static void setLocalBuild(boolean localBuild, Configuration conf) {
+    conf.setBoolean(SOLR_RECORD_WRITER_LOCAL_BUILD, localBuild);
+  }
+
+  public static int getSolrRecordWriterUploadThreads(Configuration conf) {
+    return conf.getInt(SOLR_RECORD_WRITER_UPLOAD_THREADS, 4);
+  }
+
+  public static int getSolrRecordWriterLocalBuildCommitIntervalSecs(Configuration conf) {
+    return conf.getInt(SOLR_RECORD_WRITER_LOCAL_BUILD_COMMIT_INTERVAL_SECS, 60);
+  }
+
+  public static boolean isIncrementalMerge(Configuration conf) {
+    return conf.getBoolean(SOLR_RECORD_WRITER_INCREMENTAL_MERGE, false);
+  }
+
+  public static int getSolrRecordWriterMergeThreads(Configuration conf) {
+    return Math.max(1, conf.getInt(SOLR_RECORD_WRITER_MERGE_THREADS, 2));
+  }
+
+  public static int getSolrRecordWriterIndexingThreads(Configuration conf) {
+    int threads = conf.getInt(SOLR_RECORD_WRITER_INDEXING_THREADS, -1);
+    if (threads <= 0) {
+      // by default allow as many concurrent indexing threads as there are BatchWriter threads
+      threads = getSolrWriterThreadCount(conf) + 1;
+    }
+    return threads;
+  }
+
 }
@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -32,9 +31,8 @@ import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.RecordWriter;
-import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.common.SolrInputDocument;
@@ -57,6 +55,12 @@ import org.slf4j.LoggerFactory;
  * <ul>
  * <li>solr.record.writer.batch.size - the number of documents in a batch that
  * is sent to the indexer.</li>
+ * <li>solr.record.writer.adaptive.batch.size - adapt the batch size to the
+ * target batch bytes and add latency, see {@link AdaptiveBatchSizer}.</li>
+ * <li>solr.record.writer.max.queue.bytes - the max number of bytes of batches
+ * pending for the writer threads; {@link #write} blocks while it is exceeded.</li>
+ * <li>solr.record.writer.queue.off.heap - keep pending batches serialized in
+ * direct buffers.</li>
  * <li>mapred.task.id - To build the unique temporary index directory file name.
  * </li>
  * <li>solr.output.format.setup - {@link SolrOutputFormat.SETUP_OK} The path to
@@ -118,15 +122,30 @@ class SolrRecordWriter<K, V> extends RecordWriter<K, V> {
   private final BatchWriter batchWriter;
   private final List<SolrInputDocument> batch;
   private final int batchSize;
+  private final AdaptiveBatchSizer batchSizer; // null unless adaptive
+  private long batchBytes = 0;
+  private final String droppedUniqueKeyFieldName;
   private long numDocsWritten = 0;
   private long nextLogTime = System.currentTimeMillis();
 
-  private static HashMap<TaskID, Reducer<?,?,?,?>.Context> contextMap = new HashMap<TaskID, Reducer<?,?,?,?>.Context>();
+  private final TaskAttemptContext context;
+  private long nextMetricsPublishTime = System.currentTimeMillis();
   
   public SolrRecordWriter(TaskAttemptContext context, Path outputShardDir, int batchSize) {
+    this.context = context;
     this.batchSize = batchSize;
     this.batch = new ArrayList(batchSize);
     Configuration conf = context.getConfiguration();
+    this.droppedUniqueKeyFieldName = CompactSolrInputDocumentSerialization.getDroppedUniqueKeyFieldName(conf);
+    if (SolrOutputFormat.isAdaptiveBatchSize(conf)) {
+      this.batchSizer = new AdaptiveBatchSizer(
+          batchSize, 
+          SolrOutputFormat.getMaxBatchSize(conf), 
+          SolrOutputFormat.getTargetBatchBytes(conf), 
+          SolrOutputFormat.getTargetBatchLatencyMillis(conf));
+    } else {
+      this.batchSizer = null;
+    }
 
     // setLogLevel("org.apache.solr.core", "WARN");
     // setLogLevel("org.apache.solr.update", "WARN");
@@ -137,11 +156,20 @@ class SolrRecordWriter<K, V> extends RecordWriter<K, V> {
 
       Path solrHomeDir = SolrRecordWriter.findSolrConfig(conf);
       FileSystem fs = outputShardDir.getFileSystem(conf);
-      EmbeddedSolrServer solr = createEmbeddedSolrServer(solrHomeDir, fs, outputShardDir);
+      SolrServer solr;
+      if (SolrOutputFormat.isDirectIndexing(conf) || SolrOutputFormat.isLocalBuild(conf) 
+          || SolrOutputFormat.isIncrementalMerge(conf)) {
+        solr = new DirectIndexWriterSolrServer(solrHomeDir, fs, outputShardDir, conf);
+      } else {
+        solr = createEmbeddedSolrServer(solrHomeDir, fs, outputShardDir);
+      }
       batchWriter = new BatchWriter(solr, batchSize,
           context.getTaskAttemptID().getTaskID(),
           SolrOutputFormat.getSolrWriterThreadCount(conf),
-          SolrOutputFormat.getSolrWriterQueueSize(conf));
+          SolrOutputFormat.getSolrWriterQueueSize(conf),
+          SolrOutputFormat.getSolrWriterQueueMaxBytes(conf),
+          SolrOutputFormat.isSolrWriterQueueOffHeap(conf));
+      batchWriter.setAdaptiveBatchSizer(batchSizer);
 
     } catch (Exception e) {
       throw new IllegalStateException(String.format(
@@ -207,25 +235,6 @@ class SolrRecordWriter<K, V> extends RecordWriter<K, V> {
     return solr;
   }
 
-  public static void incrementCounter(TaskID taskId, String groupName, String counterName, long incr) {
-    Reducer<?,?,?,?>.Context context = contextMap.get(taskId);
-    if (context != null) {
-      context.getCounter(groupName, counterName).increment(incr);
-    }
-  }
-
-  public static void incrementCounter(TaskID taskId, Enum counterName, long incr) {
-    Reducer<?,?,?,?>.Context context = contextMap.get(taskId);
-    if (context != null) {
-      context.getCounter(counterName).increment(incr);
-    }
-  }
-
-  public static void addReducerContext(Reducer<?,?,?,?>.Context context) {
-    TaskID taskID = context.getTaskAttemptID().getTaskID();
-    contextMap.put(taskID, context);
-  }
-
   public static Path findSolrConfig(Configuration conf) throws IOException {
     Path solrHome = null;
     // FIXME when mrunit supports the new cache apis
@@ -287,15 +296,35 @@ class SolrRecordWriter<K, V> extends RecordWriter<K, V> {
     try {
       try {
         SolrInputDocumentWritable sidw = (SolrInputDocumentWritable) value;
-        batch.add(sidw.getSolrInputDocument());
-        if (batch.size() >= batchSize) {
+        SolrInputDocument doc = sidw.getSolrInputDocument();
+        if (droppedUniqueKeyFieldName != null && doc.getField(droppedUniqueKeyFieldName) == null) {
+          doc.setField(droppedUniqueKeyFieldName, key.toString()); // restore what the shuffle key carried
+        }
+        batch.add(doc);
+        boolean isFull;
+        if (batchSizer == null) {
+          isFull = batch.size() >= batchSize;
+        } else {
+          batchBytes += BatchWriter.estimateSize(doc);
+          isFull = batchSizer.isFull(batch.size(), batchBytes);
+        }
+        if (isFull) {
           batchWriter.queueBatch(batch);
           numDocsWritten += batch.size();
+          heartBeater.addThroughput(batch.size(), batchBytes); // bytes are only estimated with adaptive batching
           if (System.currentTimeMillis() >= nextLogTime) {
             LOG.info("docsWritten: {}", numDocsWritten);
+            if (batchSizer != null) {
+              LOG.info("adaptive max docs per batch: {}", batchSizer.getMaxDocs());
+            }
             nextLogTime += 10000;
           }
           batch.clear();
+          batchBytes = 0;
+          if (System.currentTimeMillis() >= nextMetricsPublishTime) {
+            batchWriter.publishMetrics(context); // writer threads must not touch the context themselves
+            nextMetricsPublishTime = System.currentTimeMillis() + 10000;
+          }
         }
       } catch (SolrServerException e) {
         throw new IOException(e);
@@ -317,6 +346,7 @@ class SolrRecordWriter<K, V> extends RecordWriter<K, V> {
         batchWriter.queueBatch(batch);
         numDocsWritten += batch.size();
         batch.clear();
+        batchBytes = 0;
       }
       LOG.info("docsWritten: {}", numDocsWritten);
       batchWriter.close(context);
@@ -48,15 +48,24 @@ public class SolrReducer extends Reducer<Text, SolrInputDocumentWritable, Text,
   private UpdateConflictResolver resolver;
   private HeartBeater heartBeater;
   private ExceptionHandler exceptionHandler;
+  private boolean isSecondarySort;
   
   public static final String UPDATE_CONFLICT_RESOLVER = SolrReducer.class.getName() + ".updateConflictResolver";
   
+  /**
+   * Name of a numeric document field (e.g. file_last_modified) to secondary sort the updates for the
+   * same unique document key by. If set, the shuffle key carries the field value in addition to the
+   * unique document key, and the shuffle delivers the colliding updates of each key to the reducer
+   * already sorted ascending by said field, so the UpdateConflictResolver need not sort or buffer
+   * them. Disabled by default.
+   */
+  public static final String SECONDARY_SORT_FIELD_NAME = SolrReducer.class.getName() + ".secondarySortFieldName";
+  
   private static final Logger LOG = LoggerFactory.getLogger(SolrReducer.class);
   
   @Override
   protected void setup(Context context) throws IOException, InterruptedException {
     verifyPartitionAssignment(context);    
-    SolrRecordWriter.addReducerContext(context);
     Class<? extends UpdateConflictResolver> resolverClass = context.getConfiguration().getClass(
         UPDATE_CONFLICT_RESOLVER, RetainMostRecentUpdateConflictResolver.class, UpdateConflictResolver.class);
     
@@ -73,10 +82,14 @@ public class SolrReducer extends Reducer<Text, SolrInputDocumentWritable, Text,
         context.getConfiguration().get(FaultTolerance.RECOVERABLE_EXCEPTION_CLASSES, SolrServerException.class.getName()));
     
     this.heartBeater = new HeartBeater(context);
+    this.isSecondarySort = context.getConfiguration().get(SECONDARY_SORT_FIELD_NAME) != null;
   }
 
   protected void reduce(Text key, Iterable<SolrInputDocumentWritable> values, Context context) throws IOException, InterruptedException {
     heartBeater.needHeartBeat();
+    if (isSecondarySort) {
+      key = DocumentIdGroupingComparator.getDocumentId(key); // strip sort suffix
+    }
     try {
       values = resolve(key, values, context);
       super.reduce(key, values, context);
@@ -131,11 +144,12 @@ public class SolrReducer extends Reducer<Text, SolrInputDocumentWritable, Text,
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////
-  private static final class WrapIterator implements Iterator<SolrInputDocumentWritable> {
+  static final class WrapIterator implements Iterator<SolrInputDocumentWritable> {
     
     private Iterator<SolrInputDocument> parent;
+    private final SolrInputDocumentWritable reusableWritable = new SolrInputDocumentWritable();
 
-    private WrapIterator(Iterator<SolrInputDocument> parent) {
+    WrapIterator(Iterator<SolrInputDocument> parent) {
       this.parent = parent;
     }
 
@@ -146,7 +160,7 @@ public class SolrReducer extends Reducer<Text, SolrInputDocumentWritable, Text,
 
     @Override
     public SolrInputDocumentWritable next() {
-      return new SolrInputDocumentWritable(parent.next());
+      return reusableWritable.reset(parent.next()); // same reuse semantics as Hadoop's reduce value iterator
     }
 
     @Override
@@ -160,11 +174,11 @@ public class SolrReducer extends Reducer<Text, SolrInputDocumentWritable, Text,
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////
-  private static final class UnwrapIterator implements Iterator<SolrInputDocument> {
+  static final class UnwrapIterator implements Iterator<SolrInputDocument> {
     
     private Iterator<SolrInputDocumentWritable> parent;
 
-    private UnwrapIterator(Iterator<SolrInputDocumentWritable> parent) {
+    UnwrapIterator(Iterator<SolrInputDocumentWritable> parent) {
       this.parent = parent;
     }
 
@@ -34,6 +34,31 @@ public class TreeMergeMapper extends Mapper<LongWritable, Text, Text, NullWritab
 
   public static final String MAX_SEGMENTS_ON_TREE_MERGE = "maxSegmentsOnTreeMerge";
 
+  /**
+   * If true, the logical merge moves the segment files of the input shards into the merged shard
+   * via HDFS rename instead of copying their bytes. This makes the logical merge a metadata-only
+   * operation, but consumes the input shards, so a failed merge task cannot be retried. Hence the
+   * merge job runs a single attempt per task, and a merge task fails fast on incomplete input shards.
+   */
+  public static final String ZERO_COPY_TREE_MERGE = "zeroCopyTreeMerge";
+
+  /** Number of threads a merge task uses to bulk merge the segments of its output shard */
+  public static final String TREE_MERGE_THREADS = "treeMergeThreads";
+
+  /**
+   * Number of merges a merge task runs concurrently when forcing the merged shard down to
+   * {@link #MAX_SEGMENTS_ON_TREE_MERGE} segments. By default the merge scheduler configured in
+   * solrconfig.xml is used.
+   */
+  public static final String MERGE_THREADS_ON_TREE_MERGE = "mergeThreadsOnTreeMerge";
+
+  /**
+   * If true (the default), a merge task whose input shards have no deletions and use the default
+   * codec merges their segments straight into at most {@link #MAX_SEGMENTS_ON_TREE_MERGE} segments,
+   * skipping the logical merge and the subsequent forceMerge.
+   */
+  public static final String BULK_MERGE_ON_TREE_MERGE = "bulkMergeOnTreeMerge";
+
   public static final String SOLR_SHARD_NUMBER = "_solrShardNumber";
 
   @Override
@@ -16,31 +16,54 @@
  */
 package org.apache.solr.hadoop;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LogMergePolicy;
 import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.misc.IndexMergeTool;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.Version;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.store.hdfs.HdfsDirectory;
+import org.apache.solr.util.SystemIdResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
@@ -61,12 +84,13 @@ public class TreeMergeOutputFormat extends FileOutputFormat<Text, NullWritable>
   ///////////////////////////////////////////////////////////////////////////////
   // Nested classes:
   ///////////////////////////////////////////////////////////////////////////////
-  private static final class TreeMergeRecordWriter extends RecordWriter<Text,NullWritable> {
+  static final class TreeMergeRecordWriter extends RecordWriter<Text,NullWritable> {
     
     private final Path workDir;
     private final List<Path> shards = new ArrayList();
     private final HeartBeater heartBeater;
     private final TaskAttemptContext context;
+    private IndexWriterConfig baseWriterConfig; // lazily loaded from solrconfig.xml
     
     private static final Logger LOG = LoggerFactory.getLogger(TreeMergeRecordWriter.class);
 
@@ -94,75 +118,69 @@ public class TreeMergeOutputFormat extends FileOutputFormat<Text, NullWritable>
       writeShardNumberFile(context);      
       heartBeater.needHeartBeat();
       try {
-        Directory mergedIndex = new HdfsDirectory(workDir, context.getConfiguration());
-        
-        IndexWriterConfig writerConfig = new IndexWriterConfig(Version.LUCENE_CURRENT, null)
-            .setOpenMode(OpenMode.CREATE).setUseCompoundFile(false)
-            //.setMergePolicy(mergePolicy) // TODO: grab tuned MergePolicy from solrconfig.xml?
-            //.setMergeScheduler(...) // TODO: grab tuned MergeScheduler from solrconfig.xml?
-            ;
-          
-        if (LOG.isDebugEnabled()) {
-          writerConfig.setInfoStream(System.out);
-        }
-//        writerConfig.setRAMBufferSizeMB(100); // improve performance
-//        writerConfig.setMaxThreadStates(1);
-        
-        // disable compound file to improve performance
-        // also see http://lucene.472066.n3.nabble.com/Questions-on-compound-file-format-td489105.html
-        // also see defaults in SolrIndexConfig
-        MergePolicy mergePolicy = writerConfig.getMergePolicy();
-        LOG.debug("mergePolicy was: {}", mergePolicy);
-        if (mergePolicy instanceof TieredMergePolicy) {
-          ((TieredMergePolicy) mergePolicy).setNoCFSRatio(0.0);
-//          ((TieredMergePolicy) mergePolicy).setMaxMergeAtOnceExplicit(10000);          
-//          ((TieredMergePolicy) mergePolicy).setMaxMergeAtOnce(10000);       
-//          ((TieredMergePolicy) mergePolicy).setSegmentsPerTier(10000);
-        } else if (mergePolicy instanceof LogMergePolicy) {
-          ((LogMergePolicy) mergePolicy).setNoCFSRatio(0.0);
-        }
-        LOG.info("Using mergePolicy: {}", mergePolicy);
-        
-        IndexWriter writer = new IndexWriter(mergedIndex, writerConfig);
-        
+        Configuration conf = context.getConfiguration();
+        boolean isZeroCopy = conf.getBoolean(TreeMergeMapper.ZERO_COPY_TREE_MERGE, false);
+        // All input shards go straight into the final merge, even if this task receives the whole 
+        // subtree of its output shard: merging its lower levels first would only copy the same bytes 
+        // once per level, as addIndexes(Directory...) doesn't merge any segments
         Directory[] indexes = new Directory[shards.size()];
         for (int i = 0; i < shards.size(); i++) {
-          indexes[i] = new HdfsDirectory(shards.get(i), context.getConfiguration());
+          indexes[i] = openDirectory(shards.get(i), conf, isZeroCopy);
+          checkInputShard(indexes[i], shards.get(i), isZeroCopy);
         }
+        int maxSegments = context.getConfiguration().getInt(TreeMergeMapper.MAX_SEGMENTS_ON_TREE_MERGE, Integer.MAX_VALUE);
 
-        context.setStatus("Logically merging " + shards.size() + " shards into one shard");
-        LOG.info("Logically merging " + shards.size() + " shards into one shard: " + workDir);
-        long start = System.currentTimeMillis();
-        
-        writer.addIndexes(indexes); 
-        // TODO: avoid intermediate copying of files into dst directory; rename the files into the dir instead (cp -> rename) 
-        // This can improve performance and turns this phase into a true "logical" merge, completing in constant time.
-        // See https://issues.apache.org/jira/browse/LUCENE-4746
-        
-        if (LOG.isDebugEnabled()) {
-          context.getCounter(SolrCounters.class.getName(), SolrCounters.LOGICAL_TREE_MERGE_TIME.toString()).increment(System.currentTimeMillis() - start);
+        Directory mergedIndex = openDirectory(workDir, conf, isZeroCopy);
+        IndexWriterConfig writerConfig = createIndexWriterConfig(conf);
+        if (maxSegments > 1 && maxSegments < Integer.MAX_VALUE && writerConfig.getMergePolicy() instanceof TieredMergePolicy) {
+          // Split the forced merge into maxSegments merges of similar size that the merge scheduler 
+          // runs concurrently, rather than one huge merge that leaves maxSegments-1 segments untouched
+          int numSegments = countSegments(indexes);
+          int segmentsPerMerge = (int) Math.max(2, ceilDivide(numSegments, maxSegments));
+          ((TieredMergePolicy) writerConfig.getMergePolicy()).setMaxMergeAtOnceExplicit(segmentsPerMerge);
+          LOG.info("Forcing tree merge of {} segments with up to {} segments per merge", numSegments, segmentsPerMerge);
         }
-        float secs = (System.currentTimeMillis() - start) / 1000.0f;
-        LOG.info("Logical merge took {} secs", secs);        
-        int maxSegments = context.getConfiguration().getInt(TreeMergeMapper.MAX_SEGMENTS_ON_TREE_MERGE, Integer.MAX_VALUE);
-        context.setStatus("Optimizing Solr: forcing mtree merge down to " + maxSegments + " segments");
-        LOG.info("Optimizing Solr: forcing tree merge down to {} segments", maxSegments);
-        start = System.currentTimeMillis();
-        if (maxSegments < Integer.MAX_VALUE) {
-          writer.forceMerge(maxSegments); 
-          // TODO: consider perf enhancement for no-deletes merges: bulk-copy the postings data 
-          // see http://lucene.472066.n3.nabble.com/Experience-with-large-merge-factors-tp1637832p1647046.html
+        IndexWriter writer = new IndexWriter(mergedIndex, writerConfig);
+
+        List<DirectoryReader> readers = null;
+        if (maxSegments < Integer.MAX_VALUE && conf.getBoolean(TreeMergeMapper.BULK_MERGE_ON_TREE_MERGE, true)) {
+          readers = openReadersWithoutDeletes(indexes, writerConfig.getCodec());
         }
-        if (LOG.isDebugEnabled()) {
-          context.getCounter(SolrCounters.class.getName(), SolrCounters.PHYSICAL_TREE_MERGE_TIME.toString()).increment(System.currentTimeMillis() - start);
+        if (readers != null) {
+          mergeWithoutDeletes(writer, readers, maxSegments, conf);
+        } else {
+          context.setStatus("Logically merging " + shards.size() + " shards into one shard");
+          LOG.info("Logically merging " + shards.size() + " shards into one shard: " + workDir + ", zeroCopy: " + isZeroCopy);
+          long start = System.currentTimeMillis();
+          
+          // addIndexes() gives each source segment a new unique name in the dst directory, calls 
+          // Directory.copy() for each of its files and writes a new segments_N referencing them. 
+          // With zero copy enabled, Directory.copy() is a HDFS rename, which turns this phase into a 
+          // true "logical" merge, completing in constant time. See https://issues.apache.org/jira/browse/LUCENE-4746
+          writer.addIndexes(indexes); 
+          
+          if (LOG.isDebugEnabled()) {
+            context.getCounter(SolrCounters.class.getName(), SolrCounters.LOGICAL_TREE_MERGE_TIME.toString()).increment(System.currentTimeMillis() - start);
+          }
+          float secs = (System.currentTimeMillis() - start) / 1000.0f;
+          LOG.info("Logical merge took {} secs", secs);        
+          context.setStatus("Optimizing Solr: forcing mtree merge down to " + maxSegments + " segments");
+          LOG.info("Optimizing Solr: forcing tree merge down to {} segments", maxSegments);
+          start = System.currentTimeMillis();
+          if (maxSegments < Integer.MAX_VALUE) {
+            writer.forceMerge(maxSegments); 
+          }
+          if (LOG.isDebugEnabled()) {
+            context.getCounter(SolrCounters.class.getName(), SolrCounters.PHYSICAL_TREE_MERGE_TIME.toString()).increment(System.currentTimeMillis() - start);
+          }
+          secs = (System.currentTimeMillis() - start) / 1000.0f;
+          LOG.info("Optimizing Solr: done forcing tree merge down to {} segments in {} secs", maxSegments, secs);
         }
-        secs = (System.currentTimeMillis() - start) / 1000.0f;
-        LOG.info("Optimizing Solr: done forcing tree merge down to {} segments in {} secs", maxSegments, secs);
         
-        start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
         LOG.info("Optimizing Solr: Closing index writer");
         writer.close();
-        secs = (System.currentTimeMillis() - start) / 1000.0f;
+        float secs = (System.currentTimeMillis() - start) / 1000.0f;
         LOG.info("Optimizing Solr: Done closing index writer in {} secs", secs);
         context.setStatus("Done");
       } finally {
@@ -170,6 +188,218 @@ public class TreeMergeOutputFormat extends FileOutputFormat<Text, NullWritable>
         heartBeater.close();
       }
     }
+    
+    /**
+     * Fails fast if the given input shard is incomplete, which is what a retried attempt of a zero
+     * copy merge finds, as the failed attempt already moved some of the files of its input shards.
+     */
+    private static void checkInputShard(Directory index, Path path, boolean isZeroCopy) throws IOException {
+      try {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(index);
+        for (String file : infos.files(index, true)) {
+          if (!index.fileExists(file)) {
+            throw new FileNotFoundException("Missing file " + file);
+          }
+        }
+      } catch (IOException e) {
+        String msg = "Cannot read input shard: " + path;
+        if (isZeroCopy) {
+          msg += ". A zero copy tree merge moves the files of its input shards, so a failed merge task " 
+              + "cannot be retried. Rerun the job without -D " + TreeMergeMapper.ZERO_COPY_TREE_MERGE + "=true";
+        }
+        throw new IOException(msg, e);
+      }
+    }
+    
+    private static long ceilDivide(long a, long b) {
+      return (a + b - 1) / b;
+    }
+    
+    private static Directory openDirectory(Path path, Configuration conf, boolean isZeroCopy) throws IOException {
+      return isZeroCopy ? new RenamingHdfsDirectory(path, conf) : new HdfsDirectory(path, conf);
+    }
+    
+    /**
+     * Returns readers on the given indexes if none of them contains deletions and all of their
+     * segments are written with the given codec, and null otherwise. This is the common case, as
+     * neither SolrReducer nor earlier mtree levels ever delete documents.
+     */
+    private static List<DirectoryReader> openReadersWithoutDeletes(Directory[] indexes, Codec codec) throws IOException {
+      List<DirectoryReader> readers = new ArrayList();
+      boolean isMergeable = false;
+      try {
+        for (Directory index : indexes) {
+          DirectoryReader reader = DirectoryReader.open(index);
+          readers.add(reader);
+          if (reader.hasDeletions()) {
+            LOG.info("Not bulk merging because index has deletions: {}", index);
+            return null;
+          }
+          for (AtomicReaderContext leaf : reader.leaves()) {
+            Codec segmentCodec = ((SegmentReader) leaf.reader()).getSegmentInfo().info.getCodec();
+            if (!codec.getName().equals(segmentCodec.getName())) {
+              LOG.info("Not bulk merging because segment codec {} differs from {} in index: {}", 
+                  new Object[] {segmentCodec.getName(), codec.getName(), index});
+              return null;
+            }
+          }
+        }
+        isMergeable = true;
+        return readers;
+      } finally {
+        if (!isMergeable) {
+          IOUtils.close(readers);
+        }
+      }
+    }
+    
+    /**
+     * Merges the segments of the given readers straight into at most maxSegments new segments of
+     * similar size, without first copying them into the merged index and without a forceMerge.
+     * 
+     * As the segments have no deletions and use the same codec as the new segments, Lucene's
+     * SegmentMerger appends stored fields and term vectors via bulk byte copies of their compressed
+     * chunks wherever the field numbers of the source segments agree. Postings are still merged term
+     * by term, as the term dictionaries of the segments interleave, with doc ids offset by the doc
+     * count of the preceding segments.
+     * 
+     * The new segments are merged concurrently, using up to {@link TreeMergeMapper#TREE_MERGE_THREADS}
+     * threads, as IndexWriter.addIndexes() merges outside of the writer's lock.
+     */
+    private void mergeWithoutDeletes(final IndexWriter writer, List<DirectoryReader> readers, int maxSegments, 
+        Configuration conf) throws IOException {
+      
+      List<AtomicReader> leaves = new ArrayList();
+      long numDocs = 0;
+      for (DirectoryReader reader : readers) {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+          leaves.add(leaf.reader());
+          numDocs += leaf.reader().maxDoc();
+        }
+      }
+      int numGroups = Math.max(1, Math.min(maxSegments, leaves.size()));
+      int numThreads = Math.max(1, Math.min(numGroups, 
+          conf.getInt(TreeMergeMapper.TREE_MERGE_THREADS, Runtime.getRuntime().availableProcessors())));
+      context.setStatus("Merging " + leaves.size() + " segments without deletions into " + numGroups + " segments");
+      LOG.info("Merging {} segments with {} docs without deletions into {} segments using {} threads", 
+          new Object[] {leaves.size(), numDocs, numGroups, numThreads});
+      long start = System.currentTimeMillis();
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+        // cut the doc order of the source shards into groups with similar doc counts; each new segment 
+        // keeps the doc order of its group, whereas the new segments are appended in the order in which 
+        // their merges complete, just like the segments produced by a forceMerge 
+        List<Future<?>> futures = new ArrayList();
+        List<IndexReader> group = new ArrayList();
+        long groupDocs = 0;
+        int groupNum = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+          group.add(leaves.get(i));
+          groupDocs += leaves.get(i).maxDoc();
+          int remainingGroups = numGroups - groupNum - 1;
+          boolean isLast = i == leaves.size() - 1;
+          if (isLast || (remainingGroups > 0 
+              && (groupDocs >= ceilDivide(numDocs, numGroups) || leaves.size() - i - 1 == remainingGroups))) {
+            final IndexReader[] groupReaders = group.toArray(new IndexReader[group.size()]);
+            futures.add(executor.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                writer.addIndexes(groupReaders);
+                return null;
+              }
+            }));
+            group.clear();
+            groupDocs = 0;
+            groupNum++;
+          }
+        }
+        for (Future<?> future : futures) {
+          try {
+            future.get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging segments without deletions", e);
+          } catch (ExecutionException e) {
+            throw new IOException("Cannot merge segments without deletions", e.getCause());
+          }
+          context.progress();
+        }
+      } finally {
+        executor.shutdownNow();
+        IOUtils.close(readers);
+      }
+      if (LOG.isDebugEnabled()) {
+        context.getCounter(SolrCounters.class.getName(), SolrCounters.PHYSICAL_TREE_MERGE_TIME.toString()).increment(System.currentTimeMillis() - start);
+      }
+      float secs = (System.currentTimeMillis() - start) / 1000.0f;
+      LOG.info("Done merging segments without deletions into {} segments in {} secs", numGroups, secs);
+    }
+    
+    private static int countSegments(Directory[] indexes) throws IOException {
+      int numSegments = 0;
+      for (Directory index : indexes) {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(index);
+        numSegments += infos.size();
+      }
+      return numSegments;
+    }
+    
+    /**
+     * Returns a new IndexWriterConfig that starts from the tuned merge policy, merge factors and merge
+     * scheduler in the solrconfig.xml of the collection, if the solr home was shipped with the job,
+     * and otherwise from the Lucene defaults.
+     */
+    private IndexWriterConfig createIndexWriterConfig(Configuration conf) throws IOException {
+      IndexWriterConfig writerConfig;
+      synchronized (this) {
+        if (baseWriterConfig == null) {
+          if (conf.get(SolrOutputFormat.getSetupOk()) != null) {
+            baseWriterConfig = loadSolrIndexConfig(SolrRecordWriter.findSolrConfig(conf));
+          } else {
+            baseWriterConfig = new IndexWriterConfig(Version.LUCENE_CURRENT, null);
+          }
+        }
+        writerConfig = baseWriterConfig.clone();
+      }
+      
+      // disable compound file to improve performance
+      // also see http://lucene.472066.n3.nabble.com/Questions-on-compound-file-format-td489105.html
+      writerConfig.setOpenMode(OpenMode.CREATE).setUseCompoundFile(false);
+      
+      MergePolicy mergePolicy = writerConfig.getMergePolicy();
+      LOG.debug("mergePolicy was: {}", mergePolicy);
+      if (mergePolicy instanceof TieredMergePolicy) {
+        ((TieredMergePolicy) mergePolicy).setNoCFSRatio(0.0);
+      } else if (mergePolicy instanceof LogMergePolicy) {
+        ((LogMergePolicy) mergePolicy).setNoCFSRatio(0.0);
+      }
+      LOG.info("Using mergePolicy: {}", mergePolicy);
+      
+      int mergeThreads = conf.getInt(TreeMergeMapper.MERGE_THREADS_ON_TREE_MERGE, 0);
+      if (mergeThreads > 0) {
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        mergeScheduler.setMaxMergesAndThreads(mergeThreads + 2, mergeThreads);
+        writerConfig.setMergeScheduler(mergeScheduler);
+      }
+      LOG.info("Using mergeScheduler: {}", writerConfig.getMergeScheduler());
+      
+      return writerConfig;
+    }
+    
+    private static IndexWriterConfig loadSolrIndexConfig(Path solrHomeDir) throws IOException {
+      SolrResourceLoader loader = new SolrResourceLoader(solrHomeDir.toString(), null, null);
+      try {
+        SolrConfig solrConfig = new SolrConfig(loader, "solrconfig.xml", null);
+        InputSource is = new InputSource(loader.openSchema("schema.xml"));
+        is.setSystemId(SystemIdResolver.createSystemIdFromResourceName("schema.xml"));
+        IndexSchema schema = new IndexSchema(solrConfig, "schema.xml", is);
+        return solrConfig.indexConfig.toIndexWriterConfig(schema);
+      } catch (Exception e) {
+        throw new IOException("Cannot load solrconfig.xml and schema.xml from " + solrHomeDir, e);
+      }
+    }
 
     /*
      * For background see MapReduceIndexerTool.renameTreeMergeShardDirs()
@@ -192,4 +422,34 @@ public class TreeMergeOutputFormat extends FileOutputFormat<Text, NullWritable>
       writer.close();
     }    
   }
+  
+  
+  /**
+   * A HdfsDirectory that copies files into another RenamingHdfsDirectory on the same FileSystem by
+   * renaming (i.e. moving) them, which is a metadata-only operation on the NameNode.
+   */
+  private static final class RenamingHdfsDirectory extends HdfsDirectory {
+    
+    private final Path path;
+    private final FileSystem fs;
+    
+    public RenamingHdfsDirectory(Path path, Configuration conf) throws IOException {
+      super(path, conf);
+      this.path = path;
+      this.fs = path.getFileSystem(conf);
+    }
+    
+    @Override
+    public void copy(Directory to, String src, String dest, IOContext context) throws IOException {
+      if (to instanceof RenamingHdfsDirectory && fs.getUri().equals(((RenamingHdfsDirectory) to).fs.getUri())) {
+        Path srcPath = new Path(path, src);
+        Path destPath = new Path(((RenamingHdfsDirectory) to).path, dest);
+        if (!fs.rename(srcPath, destPath)) {
+          throw new IOException("Cannot rename " + srcPath + " to " + destPath);
+        }
+      } else {
+        super.copy(to, src, dest, context);
+      }
+    }
+  }
 }
@@ -23,9 +23,28 @@ import java.io.IOException;
 
 public class UnbufferedDataInputInputStream extends org.apache.solr.common.util.DataInputInputStream {
   private final DataInputStream in;
+  private final DataInputInputStream source;
   
   public UnbufferedDataInputInputStream(DataInput in) {
     this.in = new DataInputStream(DataInputInputStream.constructInputStream(in));
+    this.source = null;
+  }
+  
+  /**
+   * Creates a stream that is not yet attached to a DataInput; call {@link #reset(DataInput)} before
+   * reading. This way a single instance (and its wrappers) can be reused across many records.
+   */
+  UnbufferedDataInputInputStream() {
+    this.source = new DataInputInputStream(null);
+    this.in = new DataInputStream(source);
+  }
+  
+  /** Reattaches this stream to the given DataInput */
+  void reset(DataInput in) {
+    if (source == null) {
+      throw new IllegalStateException("Stream was not constructed to be reusable");
+    }
+    source.setDataInput(in);
   }
   
   @Override
@@ -28,6 +28,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer.Context;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.hadoop.HdfsFileFieldNames;
+import org.apache.solr.hadoop.SolrReducer;
 
 /**
  * UpdateConflictResolver implementation that orders colliding updates ascending
@@ -38,6 +39,7 @@ public class SortingUpdateConflictResolver implements UpdateConflictResolver, Co
 
   private Configuration conf;
   private String orderByFieldName = ORDER_BY_FIELD_NAME_DEFAULT;
+  private boolean isPresorted = false;
   
   public static final String ORDER_BY_FIELD_NAME_KEY = 
       SortingUpdateConflictResolver.class.getName() + ".orderByFieldName";
@@ -48,6 +50,8 @@ public class SortingUpdateConflictResolver implements UpdateConflictResolver, Co
   public void setConf(Configuration conf) {
     this.conf = conf;
     this.orderByFieldName = conf.get(ORDER_BY_FIELD_NAME_KEY, orderByFieldName);
+    // if the shuffle already sorts by our field we can stream the updates instead of buffering them
+    this.isPresorted = orderByFieldName.equals(conf.get(SolrReducer.SECONDARY_SORT_FIELD_NAME));
   }
 
   @Override
@@ -65,6 +69,9 @@ public class SortingUpdateConflictResolver implements UpdateConflictResolver, Co
   }
 
   protected Iterator<SolrInputDocument> sort(Iterator<SolrInputDocument> updates, String fieldName, Comparator child) {
+    if (isPresorted && fieldName.equals(orderByFieldName)) {
+      return updates; // already sorted ascending by the shuffle, see SolrReducer.SECONDARY_SORT_FIELD_NAME
+    }
     // TODO: use an external merge sort in the pathological case where there are a huge amount of collisions
     List<SolrInputDocument> sortedUpdates = new ArrayList(1); 
     while (updates.hasNext()) {
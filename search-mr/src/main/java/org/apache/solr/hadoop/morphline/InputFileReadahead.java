@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop.morphline;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.solr.hadoop.InputFileManifest;
+import org.apache.solr.hadoop.PathParts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the status of, opens, and optionally buffers the head of the next few input files of a
+ * map task in background threads while the current file is being parsed. This hides the HDFS
+ * open and first-byte latency that otherwise dominates jobs with many small files.
+ * 
+ * Readahead is best effort: if anything goes wrong in the background the mapper thread simply
+ * repeats the failed step itself, so errors are reported exactly as without readahead.
+ */
+final class InputFileReadahead {
+
+  private final Configuration conf;
+  private final boolean isOpeningFiles;
+  private final int maxBufferBytesPerFile;
+  private final AtomicLong availableBufferBytes;
+  private final ExecutorService executor;
+  private final LinkedList<Future<InputFile>> pending = new LinkedList<Future<InputFile>>();
+  
+  private static final Logger LOG = LoggerFactory.getLogger(InputFileReadahead.class);
+
+  public InputFileReadahead(Configuration conf, int numFiles, boolean isOpeningFiles, 
+      int maxBufferBytesPerFile, long maxBufferBytes) {
+    if (numFiles <= 0) {
+      throw new IllegalArgumentException("numFiles must be positive: " + numFiles);
+    }
+    this.conf = conf;
+    this.isOpeningFiles = isOpeningFiles;
+    this.maxBufferBytesPerFile = Math.max(0, maxBufferBytesPerFile);
+    this.availableBufferBytes = new AtomicLong(Math.max(0, maxBufferBytes));
+    this.executor = Executors.newFixedThreadPool(numFiles);
+  }
+
+  /** Starts resolving the given input file in the background */
+  public void submit(final String value) {
+    pending.addLast(executor.submit(new Callable<InputFile>() {
+      @Override
+      public InputFile call() {
+        return prefetch(value);
+      }
+    }));
+  }
+
+  /** Returns the number of submitted files that haven't been taken yet */
+  public int size() {
+    return pending.size();
+  }
+
+  /** Returns the next file in submission order, waiting for its readahead to complete if necessary */
+  public InputFile take() throws InterruptedException {
+    Future<InputFile> future = pending.removeFirst();
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause()); // can't happen as prefetch() catches everything
+    }
+  }
+
+  /** Cancels outstanding readahead and releases the resources held by files that haven't been taken */
+  public void close() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Future<InputFile> future : pending) {
+      if (future.isDone() && !future.isCancelled()) {
+        try {
+          future.get().close();
+        } catch (Exception e) {
+          ; // ignore
+        }
+      }
+    }
+    pending.clear();
+  }
+
+  private InputFile prefetch(String value) {
+    InputFile file = new InputFile(value);
+    try {
+      FileStatus stats = file.getPathParts(conf).getFileStatus(); // PathParts caches the status for the mapper thread
+      if (isOpeningFiles) {
+        file.in = file.parts.getFileSystem().open(file.parts.getUploadPath());
+        int len = (int) Math.min(maxBufferBytesPerFile, stats.getLen() + 1); // +1 detects EOF
+        if (len > 0 && reserve(len)) {
+          file.availableBufferBytes = availableBufferBytes;
+          file.reservedBytes = len;
+          file.head = new byte[len];
+          file.headLength = readFully(file.in, file.head);
+        }
+      }
+    } catch (Exception e) {
+      // fall back to doing the work synchronously within MorphlineMapRunner.map()
+      LOG.debug("Readahead failed for file " + value, e);
+      file.close();
+      file = new InputFile(value);
+    }
+    return file;
+  }
+
+  private boolean reserve(long bytes) {
+    while (true) {
+      long available = availableBufferBytes.get();
+      if (available < bytes) {
+        return false; // memory budget exhausted; don't wait as this would stall readahead entirely
+      }
+      if (availableBufferBytes.compareAndSet(available, available - bytes)) {
+        return true;
+      }
+    }
+  }
+  
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int off = 0;
+    while (off < buf.length) {
+      int n = in.read(buf, off, buf.length - off);
+      if (n < 0) {
+        break;
+      }
+      off += n;
+    }
+    return off;
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /**
+   * An input file along with whatever readahead has managed to resolve, open and buffer for it.
+   */
+  static final class InputFile {
+    
+    private final String value;
+    private PathParts parts;
+    private InputStream in; // positioned after head
+    private byte[] head;
+    private int headLength;
+    private AtomicLong availableBufferBytes;
+    private long reservedBytes;
+    
+    /** @param value a line of the list of files to index, in the format of {@link InputFileManifest} */
+    public InputFile(String value) {
+      this.value = value;
+    }
+    
+    public String getValue() {
+      return value;
+    }
+    
+    public PathParts getPathParts(Configuration conf) throws IOException {
+      if (parts == null) {
+        // use the file status carried by the line, if any, instead of asking the NameNode
+        parts = new PathParts(InputFileManifest.getPath(value), conf, InputFileManifest.getFileStatus(value));
+      }
+      return parts;
+    }
+    
+    /** Returns a stream over the entire file contents; must be called after getPathParts() */
+    public InputStream openStream() throws IOException {
+      if (in == null) {
+        in = parts.getFileSystem().open(parts.getUploadPath());
+      }
+      InputStream result;
+      if (head == null) {
+        result = new BufferedInputStream(in);
+      } else if (headLength < head.length) { // the entire file is already in memory
+        in.close();
+        result = new ByteArrayInputStream(head, 0, headLength);
+      } else {
+        result = new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), new BufferedInputStream(in));
+      }
+      in = null; // ownership passes to the caller
+      return result;
+    }
+
+    /** Releases the memory reserved for the buffered head and closes the file if it hasn't been handed out */
+    public void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          ; // ignore
+        }
+        in = null;
+      }
+      head = null;
+      if (reservedBytes > 0) {
+        availableBufferBytes.addAndGet(reservedBytes);
+        reservedBytes = 0;
+      }
+    }
+  }
+  
+}
@@ -16,9 +16,9 @@
  */
 package org.apache.solr.hadoop.morphline;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -30,6 +30,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.hadoop.HdfsFileFieldNames;
+import org.apache.solr.hadoop.InputFileManifest;
 import org.apache.solr.hadoop.PathParts;
 import org.apache.solr.hadoop.Utils;
 import org.apache.solr.schema.IndexSchema;
@@ -91,6 +92,24 @@ public final class MorphlineMapRunner {
    */
   public static final String DISABLE_FILE_OPEN = "morphlineDisableFileOpen";
   
+  /**
+   * Number of upcoming input files whose status is resolved, and which are opened, in background 
+   * threads while the current file is being parsed. This hides HDFS latency for many small files. 
+   * Zero disables readahead.
+   */
+  public static final String READAHEAD_FILES = "morphlineReadaheadFiles";
+  
+  /**
+   * Number of leading bytes of each upcoming input file to read into memory ahead of time.
+   */
+  public static final String READAHEAD_BUFFER_BYTES = "morphlineReadaheadBufferBytes";
+  
+  /**
+   * Maximum number of bytes buffered by readahead at any one time. Files that don't fit into this 
+   * budget are still opened ahead of time, but not buffered.
+   */
+  public static final String READAHEAD_MAX_BUFFERED_BYTES = "morphlineReadaheadMaxBufferedBytes";
+  
   private static final Logger LOG = LoggerFactory.getLogger(MorphlineMapRunner.class);
   
   MorphlineContext getMorphlineContext() {
@@ -100,6 +119,20 @@ public final class MorphlineMapRunner {
   IndexSchema getSchema() {
     return schema;
   }
+  
+  /** Returns null if readahead is disabled */
+  InputFileReadahead createReadahead(Configuration configuration) {
+    int numFiles = configuration.getInt(READAHEAD_FILES, 0);
+    if (numFiles <= 0) {
+      return null;
+    }
+    return new InputFileReadahead(
+        configuration,
+        numFiles, 
+        !disableFileOpen,
+        configuration.getInt(READAHEAD_BUFFER_BYTES, 1024 * 1024), 
+        configuration.getLong(READAHEAD_MAX_BUFFERED_BYTES, 64 * 1024 * 1024));
+  }
 
   public MorphlineMapRunner(Configuration configuration, DocumentLoader loader, String solrHomeDir) throws IOException {
     if (LOG.isTraceEnabled()) {
@@ -177,12 +210,17 @@ public final class MorphlineMapRunner {
    * Extract content from the path specified in the value. Key is useless.
    */
   public void map(String value, Configuration configuration, Context context) throws IOException {
-    LOG.info("Processing file {}", value);
+    map(new InputFileReadahead.InputFile(value), configuration, context);
+  }
+  
+  void map(InputFileReadahead.InputFile file, Configuration configuration, Context context) throws IOException {
+    String value = file.getValue();
+    LOG.info("Processing file {}", InputFileManifest.getPath(value));
     InputStream in = null;
     Record record = null;
     Timer.Context timerContext = elapsedTime.time();
     try {
-      PathParts parts = new PathParts(value.toString(), configuration);
+      PathParts parts = file.getPathParts(configuration);
       record = getRecord(parts);
       if (record == null) {
         return; // ignore
@@ -194,7 +232,13 @@ public final class MorphlineMapRunner {
       if (disableFileOpen) {
         in = new ByteArrayInputStream(new byte[0]);
       } else {
-        in = new BufferedInputStream(parts.getFileSystem().open(parts.getUploadPath()));
+        try {
+          in = file.openStream();
+        } catch (FileNotFoundException e) { // the status came from the list of files to index
+          LOG.warn("Ignoring file that somehow has become unavailable since the job was submitted: {}", 
+              parts.getUploadURL());
+          return;
+        }
       }
       record.put(Fields.ATTACHMENT_BODY, in);
       Notifications.notifyStartSession(morphline);
@@ -213,6 +257,7 @@ public final class MorphlineMapRunner {
       morphlineContext.getExceptionHandler().handleException(e, record);
     } finally {
       timerContext.stop();
+      file.close();
       if (in != null) {
         in.close();
       }
@@ -74,6 +74,58 @@ public class MorphlineMapper extends SolrMapper<LongWritable, Text> {
     heartBeater = new HeartBeater(context);
     this.runner = new MorphlineMapRunner(
         context.getConfiguration(), new MyDocumentLoader(), getSolrHomeDir().toString());
+    checkSecondarySortField(getSchema());
+  }
+
+  /**
+   * If readahead is enabled, prefetches upcoming input files while the current one is being
+   * processed; in this case {@link #map(LongWritable, Text, Context)} is bypassed.
+   */
+  @Override
+  public void run(Context context) throws IOException, InterruptedException {
+    setup(context);
+    try {
+      InputFileReadahead readahead = runner.createReadahead(context.getConfiguration());
+      if (readahead == null) {
+        while (context.nextKeyValue()) {
+          map(context.getCurrentKey(), context.getCurrentValue(), context);
+        }
+      } else {
+        try {
+          runWithReadahead(readahead, context);
+        } finally {
+          readahead.close();
+        }
+      }
+    } finally {
+      cleanup(context);
+    }
+  }
+  
+  private void runWithReadahead(InputFileReadahead readahead, Context context) throws IOException, InterruptedException {
+    int numFiles = context.getConfiguration().getInt(MorphlineMapRunner.READAHEAD_FILES, 0);
+    boolean hasMoreInput = true;
+    while (true) {
+      // keep numFiles files in flight in addition to the one that is about to be processed
+      while (hasMoreInput && readahead.size() <= numFiles) {
+        hasMoreInput = context.nextKeyValue();
+        if (hasMoreInput) {
+          readahead.submit(context.getCurrentValue().toString());
+        }
+      }
+      if (readahead.size() == 0) {
+        break;
+      }
+      InputFileReadahead.InputFile file = readahead.take();
+      heartBeater.needHeartBeat();
+      try {
+        long bytesRead = getFileBytesRead(context);
+        runner.map(file, context.getConfiguration(), context);
+        heartBeater.addThroughput(0, getFileBytesRead(context) - bytesRead);
+      } finally {
+        heartBeater.cancelHeartBeat();
+      }
+    }
   }
 
   /**
@@ -83,12 +135,18 @@ public class MorphlineMapper extends SolrMapper<LongWritable, Text> {
   public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
     heartBeater.needHeartBeat();
     try {
+      long bytesRead = getFileBytesRead(context);
       runner.map(value.toString(), context.getConfiguration(), context);
+      heartBeater.addThroughput(0, getFileBytesRead(context) - bytesRead);
     } finally {
       heartBeater.cancelHeartBeat();
     }
   }
   
+  private long getFileBytesRead(Context context) {
+    return context.getCounter(MorphlineCounters.class.getName(), MorphlineCounters.FILE_BYTES_READ.toString()).getValue();
+  }
+  
   @Override
   protected void cleanup(Context context) throws IOException, InterruptedException {
     heartBeater.close();
@@ -135,7 +193,7 @@ public class MorphlineMapper extends SolrMapper<LongWritable, Text> {
             + " (see Solr schema.xml)");
       }
       try {
-        context.write(new Text(id.toString()), new SolrInputDocumentWritable(doc));
+        context.write(createShuffleKey(id.toString(), doc), new SolrInputDocumentWritable(doc));
       } catch (InterruptedException e) {
         throw new IOException("Interrupted while writing " + doc, e);
       }
@@ -148,6 +206,7 @@ public class MorphlineMapper extends SolrMapper<LongWritable, Text> {
         context.getCounter(MorphlineCounters.class.getName(), MorphlineCounters.PARSER_OUTPUT_BYTES.toString()).increment(numParserOutputBytes);
       }
       context.getCounter(MorphlineCounters.class.getName(), MorphlineCounters.DOCS_READ.toString()).increment(1);
+      heartBeater.addThroughput(1, 0);
     }
 
     // just an approximation
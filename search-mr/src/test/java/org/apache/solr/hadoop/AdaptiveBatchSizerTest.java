@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest extends Assert {
+
+  @Test
+  public void testGrowsWhileFast() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(20, 100, 1000000, 500);
+    sizer.onBatchWritten(20, 10);
+    assertEquals(30, sizer.getMaxDocs());
+    for (int i = 0; i < 10; i++) {
+      sizer.onBatchWritten(sizer.getMaxDocs(), 10);
+    }
+    assertEquals(100, sizer.getMaxDocs()); // capped
+  }
+
+  @Test
+  public void testDoesNotGrowIfCutByBytes() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(20, 100, 1000, 500);
+    assertTrue(sizer.isFull(5, 1000));
+    sizer.onBatchWritten(5, 10);
+    assertEquals(20, sizer.getMaxDocs());
+  }
+
+  @Test
+  public void testShrinksWhenSlow() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1000, 1000000, 500);
+    sizer.onBatchWritten(100, 625);
+    assertEquals(80, sizer.getMaxDocs());
+    sizer.onBatchWritten(80, 100000);
+    assertEquals(40, sizer.getMaxDocs()); // at most by half
+    for (int i = 0; i < 20; i++) {
+      sizer.onBatchWritten(sizer.getMaxDocs(), 100000);
+    }
+    assertEquals(1, sizer.getMaxDocs());
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.hadoop.BalancedFileListInputFormat.FileEntry;
+import org.apache.solr.hadoop.BalancedFileListInputFormat.FileListSplit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BalancedFileListInputFormatTest extends Assert {
+
+  @Test
+  public void testCreateSplits() {
+    List<FileEntry> entries = new ArrayList<FileEntry>();
+    entries.add(new FileEntry("huge", 10000));
+    for (int i = 0; i < 100; i++) {
+      entries.add(new FileEntry("small" + i, 10 + (i % 3)));
+    }
+    List<FileListSplit> splits = BalancedFileListInputFormat.createSplits(entries, 5, 0);
+    assertEquals(5, splits.size());
+    assertEquals(1, splits.get(0).getPaths().size()); // isolated
+    assertEquals("huge", splits.get(0).getPaths().get(0));
+    
+    int numFiles = 0;
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (FileListSplit split : splits.subList(1, splits.size())) {
+      numFiles += split.getPaths().size();
+      min = Math.min(min, split.getLength());
+      max = Math.max(max, split.getLength());
+    }
+    assertEquals(100, numFiles);
+    assertTrue(max - min <= 12);
+    
+    assertEquals(3, BalancedFileListInputFormat.createSplits(entries.subList(1, 4), 10, 0).size());
+  }
+
+  @Test
+  public void testCreateLocalityAwareSplits() {
+    List<FileEntry> entries = new ArrayList<FileEntry>();
+    for (int i = 0; i < 30; i++) {
+      String host = i < 20 ? "host1" : "host2";
+      FileEntry entry = new FileEntry("file" + i, 100);
+      Map<String, Long> hostBytes = new HashMap<String, Long>();
+      hostBytes.put(host, 100L);
+      hostBytes.put("host3", 50L);
+      entry.hostBytes = hostBytes;
+      entries.add(entry);
+    }
+    List<FileListSplit> splits = BalancedFileListInputFormat.createLocalityAwareSplits(entries, 3, 0);
+    assertEquals(3, splits.size());
+    int numHost1Splits = 0;
+    for (FileListSplit split : splits) {
+      assertEquals(1000, split.getLength());
+      String host = split.getLocations()[0];
+      assertEquals("host3", split.getLocations()[1]);
+      for (String path : split.getPaths()) {
+        int i = Integer.parseInt(path.substring("file".length()));
+        assertEquals(i < 20 ? "host1" : "host2", host);
+      }
+      if (host.equals("host1")) {
+        numHost1Splits++;
+      }
+    }
+    assertEquals(2, numHost1Splits);
+    assertEquals(Arrays.asList("x"), BalancedFileListInputFormat.createLocalityAwareSplits(
+        Arrays.asList(new FileEntry("x", 0)), 3, 0).get(0).getPaths());
+  }
+
+}
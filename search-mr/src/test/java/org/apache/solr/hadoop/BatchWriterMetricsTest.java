@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.hadoop.BatchWriterMetrics.Histogram;
+import org.apache.solr.hadoop.BatchWriterMetrics.StripedCounter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchWriterMetricsTest extends Assert {
+
+  @Test
+  public void testStripedCounterWithManyThreads() throws Exception {
+    final StripedCounter counter = new StripedCounter();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.add(2);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(8 * 10000 * 2, counter.sum());
+  }
+
+  @Test
+  public void testHistogramBuckets() {
+    assertEquals(0, Histogram.getBucket(0));
+    assertEquals(0, Histogram.getBucket(1));
+    assertEquals(1, Histogram.getBucket(2));
+    assertEquals(5, Histogram.getBucket(20));
+    assertEquals(5, Histogram.getBucket(32));
+    assertEquals(6, Histogram.getBucket(33));
+    
+    Histogram histogram = new Histogram("Batches with <= %06d docs");
+    histogram.record(20);
+    histogram.record(32);
+    histogram.record(1);
+    assertEquals(2, histogram.getCount(5));
+    assertEquals(1, histogram.getCount(0));
+    assertEquals("Batches with <= 000001 docs", histogram.getCounterName(0));
+    assertEquals("Batches with <= 000032 docs", histogram.getCounterName(5));
+  }
+
+  @Test
+  public void testFormatHistogram() {
+    Histogram histogram = new Histogram("Batches taking <= %07d ms");
+    assertEquals("", BatchWriterMetrics.format(histogram));
+    histogram.record(3);
+    histogram.record(100);
+    histogram.record(4);
+    assertEquals("Batches taking <= 0000004 ms=2, Batches taking <= 0000128 ms=1", 
+        BatchWriterMetrics.format(histogram));
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class BatchWriterTest extends Assert {
+
+  @Test
+  public void testBackpressureOnHeap() throws Exception {
+    testBackpressure(false);
+  }
+  
+  @Test
+  public void testBackpressureOffHeap() throws Exception {
+    testBackpressure(true);
+  }
+  
+  private void testBackpressure(boolean isOffHeap) throws Exception {
+    final int numBatches = 20;
+    long batchBytes = BatchWriter.estimateSize(createDoc(0));
+    long maxQueueBytes = 3 * batchBytes;
+    BlockingSolrServer solr = new BlockingSolrServer();
+    final BatchWriter writer = new BatchWriter(solr, 1, null, 1, 100, maxQueueBytes, isOffHeap);
+    final AtomicInteger numQueued = new AtomicInteger();
+    final Exception[] producerException = new Exception[1];
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < numBatches; i++) {
+            writer.queueBatch(Collections.singletonList(createDoc(i)));
+            numQueued.incrementAndGet();
+          }
+        } catch (Exception e) {
+          producerException[0] = e;
+        }
+      }
+    };
+    producer.start();
+    
+    // the writer thread is stuck in the server, so the producer must block once the queue is full
+    long deadline = System.currentTimeMillis() + 10000;
+    while (producer.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.TIMED_WAITING, producer.getState());
+    assertTrue(numQueued.get() < numBatches);
+    assertTrue(writer.getPendingBytes() + " > " + maxQueueBytes, writer.getPendingBytes() <= maxQueueBytes);
+    
+    solr.permits.release(numBatches);
+    producer.join(10000);
+    assertFalse(producer.isAlive());
+    assertNull(producerException[0]);
+    assertEquals(numBatches, numQueued.get());
+    
+    writer.close(Mockito.mock(TaskAttemptContext.class, Mockito.RETURNS_DEEP_STUBS));
+    assertEquals(0, writer.getPendingBytes());
+    assertEquals(numBatches, solr.docs.size());
+    for (int i = 0; i < numBatches; i++) {
+      assertEquals("id" + i, solr.docs.get(i).getFieldValue("id"));
+      assertEquals(createText(i), solr.docs.get(i).getFieldValue("text"));
+    }
+  }
+
+  @Test
+  public void testOversizedBatchIsAdmittedIfNothingIsPending() throws Exception {
+    BlockingSolrServer solr = new BlockingSolrServer();
+    solr.permits.release(Integer.MAX_VALUE / 2);
+    BatchWriter writer = new BatchWriter(solr, 1, null, 2, 2, 1, true);
+    for (int i = 0; i < 5; i++) {
+      writer.queueBatch(Collections.singletonList(createDoc(i)));
+    }
+    writer.close(Mockito.mock(TaskAttemptContext.class, Mockito.RETURNS_DEEP_STUBS));
+    assertEquals(5, solr.docs.size());
+    assertEquals(0, writer.getPendingBytes());
+  }
+
+  private static SolrInputDocument createDoc(int i) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "id" + i);
+    doc.addField("text", createText(i));
+    return doc;
+  }
+
+  private static String createText(int i) {
+    StringBuilder buf = new StringBuilder();
+    for (int j = 0; j < 1000; j++) {
+      buf.append((char) ('a' + ((i + j) % 26)));
+    }
+    return buf.toString();
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Records added documents, blocking each add until a permit is released */
+  private static final class BlockingSolrServer extends SolrServer {
+    
+    final Semaphore permits = new Semaphore(0);
+    final List<SolrInputDocument> docs = new CopyOnWriteArrayList<SolrInputDocument>();
+    
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+      List<SolrInputDocument> added = ((UpdateRequest) request).getDocuments();
+      if (added != null) {
+        try {
+          if (!permits.tryAcquire(30, TimeUnit.SECONDS)) {
+            throw new SolrServerException("Timed out waiting for permit");
+          }
+        } catch (InterruptedException e) {
+          throw new SolrServerException(e);
+        }
+        docs.addAll(added);
+      }
+      return new NamedList<Object>();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+  
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactSolrInputDocumentSerializationTest extends Assert {
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Configuration conf = new Configuration(false);
+    conf.setStrings(CompactSolrInputDocumentSerialization.FIELD_NAMES, "id", "text", "count", "tags");
+    conf.set(CompactSolrInputDocumentSerialization.UNIQUE_KEY_FIELD_NAME, "id");
+    conf.setInt(CompactSolrInputDocumentSerialization.COMPRESSION_THRESHOLD, 100);
+    CompactSolrInputDocumentSerialization serialization = new CompactSolrInputDocumentSerialization();
+    serialization.setConf(conf);
+    assertTrue(serialization.accept(SolrInputDocumentWritable.class));
+    
+    StringBuilder longText = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      longText.append("hello world ");
+    }
+    SolrInputDocument doc1 = new SolrInputDocument();
+    doc1.addField("id", "id1");
+    doc1.addField("text", longText.toString(), 2.0f);
+    doc1.addField("count", -7L);
+    doc1.addField("tags", "foo");
+    doc1.addField("tags", "bar");
+    doc1.addField("unknown_i", 42);
+    doc1.addField("date_dt", new Date(1234567890L));
+    doc1.addField("flag_b", true);
+    doc1.addField("atomic_s", Collections.singletonMap("set", "x"));
+    doc1.setDocumentBoost(3.0f);
+    
+    SolrInputDocument doc2 = new SolrInputDocument();
+    doc2.addField("id", Long.valueOf(5)); // not a string, so must not be dropped
+    doc2.addField("text", "short");
+    
+    DataOutputBuffer out = new DataOutputBuffer();
+    Serializer<SolrInputDocumentWritable> serializer = serialization.getSerializer(SolrInputDocumentWritable.class);
+    serializer.open(out);
+    serializer.serialize(new SolrInputDocumentWritable(doc1));
+    serializer.serialize(new SolrInputDocumentWritable(doc2));
+    assertTrue(out.getLength() < longText.length() / 4);
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Deserializer<SolrInputDocumentWritable> deserializer = serialization.getDeserializer(SolrInputDocumentWritable.class);
+    deserializer.open(in);
+    SolrInputDocument result1 = deserializer.deserialize(null).getSolrInputDocument();
+    assertNull(result1.getField("id")); // dropped; the shuffle key carries it
+    assertEquals(longText.toString(), result1.getFieldValue("text"));
+    assertEquals(2.0f, result1.getField("text").getBoost(), 0.0f);
+    assertEquals(-7L, result1.getFieldValue("count"));
+    assertEquals(Arrays.asList("foo", "bar"), result1.getFieldValues("tags"));
+    assertEquals(42, result1.getFieldValue("unknown_i"));
+    assertEquals(new Date(1234567890L), result1.getFieldValue("date_dt"));
+    assertEquals(Boolean.TRUE, result1.getFieldValue("flag_b"));
+    assertEquals(Collections.singletonMap("set", "x"), result1.getFieldValue("atomic_s"));
+    assertEquals(3.0f, result1.getDocumentBoost(), 0.0f);
+    
+    SolrInputDocument result2 = deserializer.deserialize(new SolrInputDocumentWritable()).getSolrInputDocument();
+    assertEquals(5L, result2.getFieldValue("id"));
+    assertEquals("short", result2.getFieldValue("text"));
+    assertEquals(0, in.available());
+  }
+
+}
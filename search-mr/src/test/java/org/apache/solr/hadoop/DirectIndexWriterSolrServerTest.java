@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.store.hdfs.HdfsDirectory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class DirectIndexWriterSolrServerTest extends Assert {
+
+  private static final String RESOURCES_DIR = "target/test-classes";
+  private static final Path SOLR_HOME_DIR = new Path(new File(RESOURCES_DIR + "/solr/minimr").getAbsolutePath());
+  
+  // enough docs for several rounds of incremental merges, the first of which starts after 100000 docs
+  private static final int NUM_DOCS = 250000;
+  private static final int BATCH_SIZE = 1000;
+  
+  private File root;
+  
+  @Before
+  public void setUp() {
+    root = Files.createTempDir();
+  }
+  
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(root);
+  }
+  
+  @Test
+  public void testIncrementalMerge() throws Exception {
+    testIncrementalMerge(false);
+  }
+  
+  @Test
+  public void testIncrementalMergeWithLocalBuild() throws Exception {
+    testIncrementalMerge(true);
+  }
+  
+  @Test
+  public void testOverwritesDocumentsWithSameUniqueKey() throws Exception {
+    Configuration conf = new Configuration();
+    Path outputShardDir = new Path(new File(root, "part-00000").getPath());
+    DirectIndexWriterSolrServer solr = new DirectIndexWriterSolrServer(SOLR_HOME_DIR, FileSystem.getLocal(conf), outputShardDir, conf);
+    for (int version = 0; version < 3; version++) {
+      for (int i = 0; i < 10; i++) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "id" + i);
+        doc.addField("user_screen_name", "version" + version);
+        solr.add(doc);
+      }
+      solr.commit(true, false); // also overwrites documents in earlier segments
+    }
+    try {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "id0");
+      doc.addField("user_screen_name", Collections.singletonMap("set", "version3"));
+      solr.add(doc);
+      fail();
+    } catch (UnsupportedOperationException e) {
+      ; // expected
+    }
+    solr.optimize(true, false, 1);
+    solr.shutdown();
+    
+    DirectoryReader reader = DirectoryReader.open(new HdfsDirectory(new Path(outputShardDir, "data/index"), conf));
+    try {
+      assertEquals(10, reader.numDocs());
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        assertEquals("version2", reader.document(i).get("user_screen_name"));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+  
+  private void testIncrementalMerge(boolean isLocalBuild) throws Exception {
+    int maxSegments = 2;
+    Configuration conf = new Configuration();
+    conf.setBoolean(SolrOutputFormat.SOLR_RECORD_WRITER_INCREMENTAL_MERGE, true);
+    conf.setInt(SolrOutputFormat.SOLR_RECORD_WRITER_MAX_SEGMENTS, maxSegments);
+    conf.setInt(SolrOutputFormat.SOLR_RECORD_WRITER_MERGE_THREADS, 2);
+    conf.setFloat(SolrOutputFormat.SOLR_RECORD_WRITER_RAM_BUFFER_SIZE_MB, 1); // flush many small segments
+    SolrOutputFormat.setLocalBuild(isLocalBuild, conf);
+    conf.set("mapred.local.dir", new File(root, "local").getPath());
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path outputShardDir = new Path(new File(root, "part-00000").getPath());
+    
+    DirectIndexWriterSolrServer solr = new DirectIndexWriterSolrServer(SOLR_HOME_DIR, fs, outputShardDir, conf);
+    Set<String> expectedIds = new HashSet<String>();
+    List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+    for (int i = 0; i < NUM_DOCS; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "id" + i);
+      batch.add(doc);
+      expectedIds.add("id" + i);
+      if (batch.size() == BATCH_SIZE) {
+        solr.add(batch);
+        batch.clear();
+      }
+    }
+    solr.add(batch);
+    
+    // as done by BatchWriter.close()
+    solr.commit(true, false);
+    solr.optimize(true, false, maxSegments);
+    solr.commit(true, false);
+    solr.shutdown();
+    
+    DirectoryReader reader = DirectoryReader.open(new HdfsDirectory(new Path(outputShardDir, "data/index"), conf));
+    try {
+      assertEquals(NUM_DOCS, reader.numDocs());
+      assertEquals(NUM_DOCS, reader.maxDoc());
+      assertEquals(maxSegments, reader.leaves().size());
+      Set<String> ids = new HashSet<String>();
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        ids.add(reader.document(i).get("id"));
+      }
+      assertEquals(expectedIds, ids);
+    } finally {
+      reader.close();
+    }
+  }
+  
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentIdGroupingComparatorTest extends Assert {
+
+  @Test
+  public void testBasic() throws IOException {
+    assertEquals(0, compare("id1", "id1"));
+    assertTrue(compare("id1", "id2") < 0);
+    assertTrue(compare("id2", "id1") > 0);
+    assertTrue(compare("id1", "id10") < 0);
+    assertEquals(0, compare("id1", "id1\u0000v1"));
+    assertEquals(0, compare("id1\u0000v2", "id1\u0000v1"));
+    assertTrue(compare("id1\u0000v2", "id10\u0000v1") < 0);
+    assertTrue(compare("id10", "id1\u0000v1") > 0);
+    assertEquals(0, compare("", "\u0000v1"));
+  }
+
+  @Test
+  public void testGetDocumentIdAndPartition() {
+    assertEquals(new Text("id1"), DocumentIdGroupingComparator.getDocumentId(new Text("id1")));
+    assertEquals(new Text("id1"), DocumentIdGroupingComparator.getDocumentId(new Text("id1\u0000v1")));
+    assertEquals(new Text(""), DocumentIdGroupingComparator.getDocumentId(new Text("\u0000v1")));
+    
+    DocumentIdPartitioner partitioner = new DocumentIdPartitioner();
+    HashPartitioner<Text, SolrInputDocumentWritable> hashPartitioner = new HashPartitioner();
+    for (int i = 0; i < 100; i++) {
+      Text key = new Text("id" + i);
+      int partition = partitioner.getPartition(key, null, 7);
+      assertEquals(hashPartitioner.getPartition(key, null, 7), partition);
+      assertEquals(partition, partitioner.getPartition(new Text("id" + i + "\u0000v" + i), null, 7));
+    }
+  }
+
+  private int compare(String s1, String s2) throws IOException {
+    DocumentIdGroupingComparator comparator = new DocumentIdGroupingComparator();
+    DataOutputBuffer b1 = new DataOutputBuffer();
+    new Text(s1).write(b1);
+    DataOutputBuffer b2 = new DataOutputBuffer();
+    new Text(s2).write(b2);
+    int rawResult = comparator.compare(b1.getData(), 0, b1.getLength(), b2.getData(), 0, b2.getLength());
+    int objectResult = comparator.compare(new Text(s1), new Text(s2));
+    assertEquals(Integer.signum(rawResult), Integer.signum(objectResult));
+    return rawResult;
+  }
+  
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class GoLiveTest extends Assert {
+
+  private static final String[] NODES = {"http://node1:8983/solr", "http://node2:8983/solr", "http://node3:8983/solr"};
+  
+  private File root;
+  private FileSystem fs;
+  
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDir();
+    fs = FileSystem.getLocal(new Configuration());
+  }
+  
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(root);
+  }
+  
+  @Test
+  public void testIsTransient() {
+    assertTrue(GoLive.isTransient(new ConnectException("Connection refused")));
+    assertTrue(GoLive.isTransient(new ConnectTimeoutException("Connect timed out")));
+    assertTrue(GoLive.isTransient(new SolrServerException("Server refused connection", new ConnectException())));
+    assertTrue(GoLive.isTransient(new SolrServerException(new IOException(new ConnectTimeoutException()))));
+    assertTrue(GoLive.isTransient(new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "Service unavailable")));
+    assertTrue(GoLive.isTransient(new SolrServerException(new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "busy"))));
+    
+    // the request may have reached the core, or the core has rejected it
+    assertFalse(GoLive.isTransient(new SocketTimeoutException("Read timed out")));
+    assertFalse(GoLive.isTransient(new SolrServerException(new SocketTimeoutException())));
+    assertFalse(GoLive.isTransient(new IOException("Broken pipe")));
+    assertFalse(GoLive.isTransient(new SolrServerException("Error")));
+    assertFalse(GoLive.isTransient(new SolrException(ErrorCode.SERVER_ERROR, "Error")));
+    assertFalse(GoLive.isTransient(new SolrException(ErrorCode.BAD_REQUEST, "Error")));
+    assertFalse(GoLive.isTransient(new RuntimeException()));
+  }
+  
+  @Test
+  public void testRetryDelays() {
+    GoLive goLive = new GoLive();
+    assertEquals(1000, goLive.getRetryDelayMillis(1));
+    assertEquals(2000, goLive.getRetryDelayMillis(2));
+    assertEquals(4000, goLive.getRetryDelayMillis(3));
+    assertEquals(32000, goLive.getRetryDelayMillis(6));
+    assertEquals(60000, goLive.getRetryDelayMillis(7));
+    assertEquals(60000, goLive.getRetryDelayMillis(100));
+    assertEquals(60000, goLive.getRetryDelayMillis(Integer.MAX_VALUE));
+  }
+  
+  @Test
+  public void testPerNodeConcurrencyCap() throws IOException {
+    FileStatus[] outDirs = createOutputShards(8);
+    MapReduceIndexerTool.Options options = createOptions(8, 3);
+    options.goLiveThreads = 10;
+    options.goLiveThreadsPerNode = 2;
+    FakeGoLive goLive = new FakeGoLive();
+    goLive.mergeMillis = 50;
+    
+    assertTrue(goLive.goLive(options, outDirs, fs));
+    assertEquals(8 * 3, goLive.merges.size());
+    assertEquals(new HashSet<String>(goLive.merges).size(), goLive.merges.size()); // each replica exactly once
+    for (String node : NODES) {
+      assertTrue(node + ": " + goLive.maxRunningPerNode.get(node), goLive.maxRunningPerNode.get(node) <= 2);
+    }
+    assertTrue(goLive.maxRunning.get() <= 10);
+    assertEquals(8 * 3, goLive.commits.get()); // one per replica
+  }
+  
+  @Test
+  public void testLargestShardsAreMergedFirst() throws IOException {
+    FileStatus[] outDirs = createOutputShards(5);
+    MapReduceIndexerTool.Options options = createOptions(5, 1);
+    options.goLiveThreads = 1;
+    FakeGoLive goLive = new FakeGoLive();
+    
+    assertTrue(goLive.goLive(options, outDirs, fs));
+    List<String> expected = new ArrayList<String>();
+    for (int i = 4; i >= 0; i--) { // the size of shard i grows with i
+      expected.add(getCoreUrl(i, 0) + " <- " + new Path(outDirs[i].getPath(), "data/index"));
+    }
+    assertEquals(expected, goLive.merges);
+  }
+  
+  @Test
+  public void testRetriesTransientFailuresWithBackoff() throws IOException {
+    FileStatus[] outDirs = createOutputShards(3);
+    MapReduceIndexerTool.Options options = createOptions(3, 2);
+    options.goLiveRetries = 3;
+    FakeGoLive goLive = new FakeGoLive(10, 20);
+    String failingCore = getCoreUrl(1, 1);
+    goLive.failures.put(failingCore, 3);
+    goLive.failure = new SolrServerException("Server refused connection", new ConnectException());
+    
+    long start = System.currentTimeMillis();
+    assertTrue(goLive.goLive(options, outDirs, fs));
+    assertTrue(System.currentTimeMillis() - start >= 10 + 20 + 20); // backoff is capped at 20ms
+    assertEquals(4, goLive.attempts.get(failingCore).get());
+    assertEquals(1, goLive.attempts.get(getCoreUrl(0, 0)).get());
+    assertEquals(3 * 2, goLive.merges.size());
+    assertEquals(3 * 2, goLive.commits.get());
+  }
+  
+  @Test
+  public void testFailsOnceRetriesAreExhausted() throws IOException {
+    FileStatus[] outDirs = createOutputShards(2);
+    MapReduceIndexerTool.Options options = createOptions(2, 1);
+    options.goLiveRetries = 2;
+    FakeGoLive goLive = new FakeGoLive(1, 1);
+    String failingCore = getCoreUrl(0, 0);
+    goLive.failures.put(failingCore, Integer.MAX_VALUE);
+    goLive.failure = new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "Service unavailable");
+    
+    assertFalse(goLive.goLive(options, outDirs, fs));
+    assertEquals(1 + 2, goLive.attempts.get(failingCore).get());
+    assertEquals(0, goLive.commits.get());
+  }
+  
+  @Test
+  public void testDoesNotRetryNonTransientFailures() throws IOException {
+    FileStatus[] outDirs = createOutputShards(2);
+    MapReduceIndexerTool.Options options = createOptions(2, 1);
+    options.goLiveRetries = 5;
+    FakeGoLive goLive = new FakeGoLive(1, 1);
+    String failingCore = getCoreUrl(1, 0);
+    goLive.failures.put(failingCore, 1);
+    goLive.failure = new SolrServerException(new SocketTimeoutException("Read timed out"));
+    
+    assertFalse(goLive.goLive(options, outDirs, fs));
+    assertEquals(1, goLive.attempts.get(failingCore).get());
+    assertEquals(0, goLive.commits.get());
+  }
+  
+  @Test
+  public void testRetriesFailedCommits() throws IOException {
+    FileStatus[] outDirs = createOutputShards(2);
+    MapReduceIndexerTool.Options options = createOptions(2, 1);
+    options.goLiveRetries = 2;
+    FakeGoLive goLive = new FakeGoLive(1, 1);
+    goLive.commitFailures.set(2);
+    
+    assertTrue(goLive.goLive(options, outDirs, fs));
+    assertEquals(2, goLive.merges.size());
+    assertEquals(2 + 2, goLive.commitAttempts.get());
+    assertEquals(2, goLive.commits.get());
+  }
+  
+  @Test
+  public void testRetriesCommitsFailingWithServerErrors() throws IOException {
+    FileStatus[] outDirs = createOutputShards(2);
+    MapReduceIndexerTool.Options options = createOptions(2, 1);
+    options.goLiveRetries = 2;
+    FakeGoLive goLive = new FakeGoLive(1, 1);
+    goLive.commitFailure = new HttpSolrServer.RemoteSolrException(503, "Service Unavailable", null);
+    goLive.commitFailures.set(2);
+    
+    assertTrue(goLive.goLive(options, outDirs, fs));
+    assertEquals(2 + 2, goLive.commitAttempts.get());
+    assertEquals(2, goLive.commits.get());
+  }
+  
+  @Test
+  public void testDoesNotRetryCommitsFailingWithClientErrors() throws IOException {
+    FileStatus[] outDirs = createOutputShards(2);
+    MapReduceIndexerTool.Options options = createOptions(2, 1);
+    options.goLiveRetries = 2;
+    FakeGoLive goLive = new FakeGoLive(1, 1);
+    goLive.commitFailure = new HttpSolrServer.RemoteSolrException(400, "Bad Request", null);
+    goLive.commitFailures.set(1);
+    
+    assertFalse(goLive.goLive(options, outDirs, fs));
+    assertEquals(2, goLive.commitAttempts.get());
+    assertEquals(1, goLive.commits.get());
+  }
+  
+  /** Creates output shards whose index size grows with the shard number */
+  private FileStatus[] createOutputShards(int numShards) throws IOException {
+    FileStatus[] outDirs = new FileStatus[numShards];
+    for (int i = 0; i < numShards; i++) {
+      Path dir = new Path(new File(root, String.format("part-%05d", i)).getPath());
+      OutputStream out = fs.create(new Path(dir, "data/index/_0.fdt"));
+      out.write(new byte[1000 * (i + 1)]);
+      out.close();
+      outDirs[i] = fs.getFileStatus(dir);
+    }
+    return outDirs;
+  }
+  
+  private MapReduceIndexerTool.Options createOptions(int numShards, int numReplicas) {
+    MapReduceIndexerTool.Options options = new MapReduceIndexerTool.Options();
+    options.goLive = true;
+    options.goLiveThreads = 4;
+    options.goLiveThreadsPerNode = 2;
+    options.goLiveRetries = 0;
+    options.shardUrls = new ArrayList<List<String>>();
+    for (int i = 0; i < numShards; i++) {
+      List<String> urls = new ArrayList<String>();
+      for (int j = 0; j < numReplicas; j++) {
+        urls.add(getCoreUrl(i, j) + "/");
+      }
+      options.shardUrls.add(urls);
+    }
+    return options;
+  }
+  
+  /** Spreads the replicas of each shard across the nodes */
+  private static String getCoreUrl(int shard, int replica) {
+    return NODES[(shard + replica) % NODES.length] + "/collection1_shard" + (shard + 1) + "_replica" + (replica + 1);
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Simulates the Solr nodes, recording the requests they receive */
+  private static final class FakeGoLive extends GoLive {
+    
+    final List<String> merges = Collections.synchronizedList(new ArrayList<String>());
+    final Map<String, AtomicInteger> attempts = Collections.synchronizedMap(new HashMap<String, AtomicInteger>());
+    final Map<String, Integer> failures = new HashMap<String, Integer>(); // core URL -> failed attempts
+    volatile Exception failure;
+    volatile long mergeMillis = 0;
+    
+    final Map<String, AtomicInteger> runningPerNode = new HashMap<String, AtomicInteger>();
+    final Map<String, Integer> maxRunningPerNode = Collections.synchronizedMap(new HashMap<String, Integer>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    
+    final AtomicInteger commitFailures = new AtomicInteger();
+    volatile Exception commitFailure = new IOException("Commit failed");
+    final AtomicInteger commitAttempts = new AtomicInteger();
+    final AtomicInteger commits = new AtomicInteger();
+    
+    public FakeGoLive() {
+      this(1, 1);
+    }
+    
+    public FakeGoLive(long initialRetryDelayMillis, long maxRetryDelayMillis) {
+      super(initialRetryDelayMillis, maxRetryDelayMillis);
+      for (String node : NODES) {
+        runningPerNode.put(node, new AtomicInteger());
+        maxRunningPerNode.put(node, 0);
+      }
+    }
+    
+    @Override
+    SolrServer createSolrServer(final String url) {
+      return new SolrServer() {
+        
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+          if (request instanceof CoreAdminRequest.MergeIndexes) {
+            merge(url, request.getParams().get(CoreAdminParams.CORE), request.getParams().get(CoreAdminParams.INDEX_DIR));
+          } else if (request instanceof UpdateRequest) {
+            commitAttempts.incrementAndGet();
+            if (commitFailures.getAndDecrement() > 0) {
+              if (commitFailure instanceof IOException) {
+                throw (IOException) commitFailure;
+              } else {
+                throw (RuntimeException) commitFailure;
+              }
+            }
+            commits.incrementAndGet();
+          } else {
+            throw new UnsupportedOperationException();
+          }
+          return new NamedList<Object>();
+        }
+        
+        @Override
+        public void shutdown() {
+        }
+      };
+    }
+    
+    private void merge(String nodeUrl, String coreName, String indexDir) throws SolrServerException, IOException {
+      String coreUrl = nodeUrl + "/" + coreName;
+      AtomicInteger nodeRunning = runningPerNode.get(nodeUrl);
+      int num = nodeRunning.incrementAndGet();
+      synchronized (maxRunningPerNode) {
+        maxRunningPerNode.put(nodeUrl, Math.max(num, maxRunningPerNode.get(nodeUrl)));
+      }
+      num = running.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(num, maxRunning.get()));
+      }
+      try {
+        int attempt;
+        synchronized (attempts) {
+          if (!attempts.containsKey(coreUrl)) {
+            attempts.put(coreUrl, new AtomicInteger());
+          }
+          attempt = attempts.get(coreUrl).incrementAndGet();
+        }
+        Integer numFailures = failures.get(coreUrl);
+        if (numFailures != null && attempt <= numFailures) {
+          if (failure instanceof SolrServerException) {
+            throw (SolrServerException) failure;
+          } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+          } else {
+            throw (RuntimeException) failure;
+          }
+        }
+        if (mergeMillis > 0) {
+          try {
+            Thread.sleep(mergeMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+          }
+        }
+        merges.add(coreUrl + " <- " + indexDir);
+      } finally {
+        nodeRunning.decrementAndGet();
+        running.decrementAndGet();
+      }
+    }
+  }
+  
+}
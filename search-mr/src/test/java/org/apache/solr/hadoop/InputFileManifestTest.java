@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InputFileManifestTest extends Assert {
+
+  @Test
+  public void testFileStatusRoundTrip() {
+    FileStatus stats = new FileStatus(123, false, 3, 128 * 1024 * 1024, 1400000000000L, 0, 
+        new FsPermission((short) 01754), "alice", "staff", new Path("hdfs://host:8020/foo/bar.txt"));
+    String line = InputFileManifest.formatLine(stats);
+    assertEquals("hdfs://host:8020/foo/bar.txt", InputFileManifest.getPath(line));
+    assertEquals(123, InputFileManifest.getLength(line));
+    
+    FileStatus actual = InputFileManifest.getFileStatus(line);
+    assertEquals(stats.getPath(), actual.getPath());
+    assertEquals(stats.getLen(), actual.getLen());
+    assertEquals(stats.getModificationTime(), actual.getModificationTime());
+    assertEquals(stats.getPermission(), actual.getPermission());
+    assertTrue(actual.getPermission().getStickyBit());
+    assertEquals("alice", actual.getOwner());
+    assertEquals("staff", actual.getGroup());
+  }
+  
+  @Test
+  public void testPlainAndLengthOnlyLines() {
+    assertEquals("hdfs://host:8020/foo/bar.txt", InputFileManifest.getPath("hdfs://host:8020/foo/bar.txt\t123"));
+    assertEquals(123, InputFileManifest.getLength("hdfs://host:8020/foo/bar.txt\t123"));
+    assertNull(InputFileManifest.getFileStatus("hdfs://host:8020/foo/bar.txt\t123"));
+    
+    assertEquals("/foo/bar.txt", InputFileManifest.getPath("/foo/bar.txt"));
+    assertEquals(-1, InputFileManifest.getLength("/foo/bar.txt"));
+    assertNull(InputFileManifest.getFileStatus("/foo/bar.txt"));
+  }
+  
+  @Test
+  public void testTabsWithinPaths() {
+    assertEquals("/foo\tbar.txt", InputFileManifest.getPath("/foo\tbar.txt"));
+    assertEquals(-1, InputFileManifest.getLength("/foo\tbar.txt"));
+    
+    FileStatus stats = new FileStatus(7, false, 1, 1, 5, 0, 
+        new FsPermission((short) 0644), "bob", "users", new Path("/a\tb/c\t1/d"));
+    String line = InputFileManifest.formatLine(stats);
+    assertEquals(stats.getPath().toString(), InputFileManifest.getPath(line));
+    assertEquals(7, InputFileManifest.getLength(line));
+    assertEquals("bob", InputFileManifest.getFileStatus(line).getOwner());
+  }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class LocalIndexUploaderTest extends Assert {
+
+  private File root;
+  
+  @Before
+  public void setUp() {
+    root = Files.createTempDir();
+  }
+  
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(root);
+  }
+  
+  @Test
+  public void testUpload() throws Exception {
+    File localDir = new File(root, "local");
+    File remoteDir = new File(root, "remote");
+    Configuration conf = new Configuration();
+    RecordingFileSystem fs = new RecordingFileSystem(FileSystem.getLocal(conf));
+    LocalIndexUploader uploader = new LocalIndexUploader(localDir, fs, new Path(remoteDir.getPath()), 3, conf);
+    
+    Directory dir = FSDirectory.open(localDir);
+    SnapshotDeletionPolicy snapshotPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_CURRENT, null);
+    config.setIndexDeletionPolicy(snapshotPolicy);
+    IndexWriter writer = new IndexWriter(dir, config);
+    
+    // upload the files of several intermediate commits while indexing continues 
+    int numDocs = 0;
+    List<IndexCommit> snapshots = new ArrayList<IndexCommit>();
+    Set<String> intermediateFileNames = new HashSet<String>();
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 10; j++) {
+        Document doc = new Document();
+        doc.add(new StringField("id", "id" + numDocs++, Field.Store.YES));
+        writer.addDocument(doc);
+      }
+      writer.commit();
+      IndexCommit commit = snapshotPolicy.snapshot();
+      snapshots.add(commit);
+      intermediateFileNames.addAll(commit.getFileNames());
+      for (Future<?> future : uploader.upload(commit.getFileNames())) {
+        future.get();
+      }
+    }
+    
+    // no commit becomes visible before finish()
+    for (String fileName : fs.createdFileNames) {
+      assertFalse(fileName, fileName.startsWith(IndexFileNames.SEGMENTS));
+    }
+    
+    for (IndexCommit snapshot : snapshots) {
+      snapshotPolicy.release(snapshot);
+    }
+    writer.forceMerge(1); // makes the segments of the intermediate commits obsolete
+    writer.close();
+    List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+    Collection<String> finalFileNames = commits.get(commits.size() - 1).getFileNames();
+    uploader.finish(finalFileNames);
+    dir.close();
+
+    // segments_N is written last
+    String lastFileName = fs.createdFileNames.get(fs.createdFileNames.size() - 1);
+    if (lastFileName.equals(IndexFileNames.SEGMENTS_GEN)) {
+      lastFileName = fs.createdFileNames.get(fs.createdFileNames.size() - 2);
+    }
+    assertTrue(lastFileName, lastFileName.startsWith(IndexFileNames.SEGMENTS + "_"));
+    assertTrue(finalFileNames.contains(lastFileName));
+    
+    // obsolete files are deleted
+    Set<String> remoteFileNames = new HashSet<String>();
+    for (String fileName : remoteDir.list()) {
+      if (!fileName.startsWith(".")) { // ignore checksum files of the local FileSystem
+        remoteFileNames.add(fileName);
+      }
+    }
+    remoteFileNames.remove(IndexFileNames.SEGMENTS_GEN);
+    assertEquals(new HashSet<String>(finalFileNames), remoteFileNames);
+    intermediateFileNames.removeAll(finalFileNames);
+    assertFalse(intermediateFileNames.isEmpty());
+    
+    // the uploaded index is complete
+    Directory remoteIndex = FSDirectory.open(remoteDir);
+    DirectoryReader reader = DirectoryReader.open(remoteIndex);
+    assertEquals(numDocs, reader.numDocs());
+    assertEquals(1, reader.leaves().size());
+    reader.close();
+    remoteIndex.close();
+  }
+  
+  
+  ///////////////////////////////////////////////////////////////////////////////
+  // Nested classes:
+  ///////////////////////////////////////////////////////////////////////////////
+  /** Records the names of the files it creates, in creation order */
+  private static final class RecordingFileSystem extends FilterFileSystem {
+    
+    final List<String> createdFileNames = new ArrayList<String>();
+    
+    public RecordingFileSystem(FileSystem fs) {
+      super(fs);
+    }
+    
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, 
+        short replication, long blockSize, Progressable progress) throws IOException {
+      synchronized (createdFileNames) {
+        createdFileNames.add(f.getName());
+      }
+      return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+    }
+  }
+  
+}
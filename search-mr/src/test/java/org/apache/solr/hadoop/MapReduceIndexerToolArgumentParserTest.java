@@ -79,6 +79,7 @@ public class MapReduceIndexerToolArgumentParserTest extends Assert {
         "--output-dir", "file:/tmp/foo",
         "--solr-home-dir", SOLR_HOME_DIR,
         "--mappers", "10", 
+        "--mapper-threads", "4", 
         "--reducers", "9", 
         "--fanout", "8", 
         "--max-segments", "7", 
@@ -93,6 +94,7 @@ public class MapReduceIndexerToolArgumentParserTest extends Assert {
     assertEquals(new Path("file:/tmp/foo"), opts.outputDir);
     assertEquals(new File(SOLR_HOME_DIR), opts.solrHomeDir);
     assertEquals(10, opts.mappers);
+    assertEquals(4, opts.mapperThreads);
     assertEquals(9, opts.reducers);
     assertEquals(8, opts.fanout);
     assertEquals(7, opts.maxSegments);
@@ -372,6 +374,26 @@ public class MapReduceIndexerToolArgumentParserTest extends Assert {
     Integer result = parser.parseArgs(args, conf, opts);
     assertNull(result);
     assertEmptySystemErrAndEmptySystemOut();
+    assertEquals(2, opts.goLiveThreadsPerNode);
+    assertEquals(3, opts.goLiveRetries);
+  }
+  
+  @Test
+  public void testArgsGoLiveThreadsPerNodeAndRetries() {
+    String[] args = new String[] { 
+        "--input-list", "file:///tmp",
+        "--morphline-file", MORPHLINE_FILE,
+        "--output-dir", "file:/tmp/foo",
+        "--solr-home-dir", SOLR_HOME_DIR, 
+        "--shard-url", "http://localhost:8983/solr/collection1",
+        "--go-live",
+        "--go-live-threads-per-node", "5",
+        "--go-live-retries", "0"
+        };
+    assertNull(parser.parseArgs(args, conf, opts));
+    assertEmptySystemErrAndEmptySystemOut();
+    assertEquals(5, opts.goLiveThreadsPerNode);
+    assertEquals(0, opts.goLiveRetries);
   }
   
   @Test
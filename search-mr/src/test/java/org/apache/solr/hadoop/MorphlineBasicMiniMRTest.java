@@ -34,6 +34,7 @@ import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MiniMRCluster;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobCounter;
 import org.apache.hadoop.security.authorize.ProxyUsers;
 import org.apache.hadoop.util.JarFinder;
 import org.apache.hadoop.util.ToolRunner;
@@ -41,6 +42,7 @@ import org.apache.solr.handler.extraction.ExtractingParams;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -322,6 +324,54 @@ public class MorphlineBasicMiniMRTest extends Assert {
     numRuns++;
   }
   
+  @Test
+  public void mrRunFullFanoutMtreeMerge() throws Exception {
+    // the local job runner supports only one reducer, and a single input file suffices
+    Assume.assumeTrue(!ENABLE_LOCAL_JOB_RUNNER && count > 20);
+    FileSystem fs = dfsCluster.getFileSystem();
+    String DATADIR = "/user/testing/testFullFanoutMtreeMerge/data";
+    Path dataDir = fs.makeQualified(new Path(DATADIR));
+    fs.delete(dataDir, true);
+    Path outDir = fs.makeQualified(new Path("/user/testing/testFullFanoutMtreeMerge/output"));
+    fs.delete(outDir, true);
+
+    assertTrue(fs.mkdirs(dataDir));
+    fs.copyFromLocalFile(new Path(DOCUMENTS_DIR, inputAvroFile), dataDir);
+    
+    JobConf jobConf = getJobConf();
+    jobConf.setMaxMapAttempts(1);
+    jobConf.setMaxReduceAttempts(1);
+    jobConf.setJar(SEARCH_ARCHIVES_JAR);
+    jobConf.setBoolean(ExtractingParams.IGNORE_TIKA_EXCEPTION, false);
+    
+    int shards = 2;
+    String[] args = new String[] {
+        "--morphline-file=" + RESOURCES_DIR + "/test-morphlines/solrCellDocumentTypes.conf",
+        "--morphline-id=morphline1",
+        "--solr-home-dir=" + MINIMR_CONF_DIR.getAbsolutePath(),
+        "--output-dir=" + outDir.toString(),
+        "--shards=" + shards,
+        "--reducers=8",
+        "--fanout=4", // reducers/shards
+        "--max-segments=2",
+        "--verbose",
+        dataDir.toString()
+    };
+    MapReduceIndexerTool tool = createTool();
+    int res = ToolRunner.run(jobConf, tool, args);
+    assertEquals(0, res);
+    assertTrue(tool.job.isComplete());
+    assertTrue(tool.job.isSuccessful());
+    
+    // both levels of the mtree are merged by the tasks of a single merge job
+    assertTrue(fs.exists(new Path(outDir, "mtree-merge-input-iteration1")));
+    assertFalse(fs.exists(new Path(outDir, "mtree-merge-input-iteration2")));
+    assertEquals(shards, tool.job.getCounters().findCounter(JobCounter.TOTAL_LAUNCHED_MAPS).getValue());
+    
+    outDir = new Path(outDir, MapReduceIndexerTool.RESULTS_DIR);
+    TestUtils.validateSolrServerDocumentCount(MINIMR_CONF_DIR, fs, outDir, count, shards);
+  }
+  
   protected static <T> T[] concat(T[]... arrays) {
     if (arrays.length <= 0) {
       throw new IllegalArgumentException();
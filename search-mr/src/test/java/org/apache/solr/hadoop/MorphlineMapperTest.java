@@ -24,6 +24,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mrunit.mapreduce.MapDriver;
 import org.apache.hadoop.mrunit.types.Pair;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.hadoop.morphline.MorphlineMapRunner;
 import org.apache.solr.hadoop.morphline.MorphlineMapper;
 import org.junit.Test;
 
@@ -55,4 +56,27 @@ public class MorphlineMapperTest extends MRUnitBase {
       System.out.println(p.getSecond());
     }
   }
+  
+  @Test
+  public void testMapperWithReadahead() throws Exception {
+    MorphlineMapper mapper = new MorphlineMapper();
+    MapDriver<LongWritable, Text, Text, SolrInputDocumentWritable> mapDriver = MapDriver.newMapDriver(mapper);;
+
+    Configuration config = mapDriver.getConfiguration();
+    setupHadoopConfig(config);
+    config.setInt(MorphlineMapRunner.READAHEAD_FILES, 2);
+    config.setInt(MorphlineMapRunner.READAHEAD_BUFFER_BYTES, 1024);
+
+    for (int i = 0; i < 3; i++) {
+      mapDriver.withInput(new LongWritable(i), new Text("hdfs://localhost/" + DOCUMENTS_DIR + "/sample-statuses-20120906-141433.avro"));
+    }
+
+    List<Pair<Text, SolrInputDocumentWritable>> result = mapDriver
+      .withCacheArchive(solrHomeZip.getAbsolutePath())
+      .run();
+    for (Pair<Text, SolrInputDocumentWritable> p: result) {
+      System.out.println(p.getFirst());
+      System.out.println(p.getSecond());
+    }
+  }
 }
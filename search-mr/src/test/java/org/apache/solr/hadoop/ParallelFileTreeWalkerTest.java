@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class ParallelFileTreeWalkerTest extends Assert {
+
+  @Test
+  public void testWalk() throws IOException {
+    File root = Files.createTempDir();
+    try {
+      FileSystem fs = FileSystem.getLocal(new Configuration());
+      Set<String> expected = new HashSet<String>();
+      for (int i = 0; i < 5; i++) {
+        for (int j = 0; j < 3; j++) {
+          Path file = new Path(root.getPath(), "dir" + i + "/subdir" + j + "/file" + j);
+          fs.create(file).close();
+          expected.add(fs.makeQualified(file).toString());
+        }
+        fs.create(new Path(root.getPath(), "dir" + i + "/_hidden")).close();
+      }
+      PathFilter pathFilter = new PathFilter() {      
+        @Override
+        public boolean accept(Path path) {
+          return !path.getName().startsWith("_"); 
+        }
+      };
+      
+      for (int numThreads : new int[] {1, 4}) {
+        StringWriter writer = new StringWriter();
+        long numFiles = new ParallelFileTreeWalker(fs, pathFilter, numThreads).walk(new Path(root.getPath()), writer);
+        assertEquals(expected.size(), numFiles);
+        Set<String> actual = new HashSet<String>(Arrays.asList(writer.toString().split("\n")));
+        assertEquals(expected, actual);
+      }
+    } finally {
+      FileUtil.fullyDelete(root);
+    }
+  }
+
+}
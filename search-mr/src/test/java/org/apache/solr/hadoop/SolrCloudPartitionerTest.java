@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.PlainIdRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.MapSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SolrCloudPartitionerTest extends Assert {
+
+  private static final int[] SHARD_COUNTS = {1, 2, 3, 5, 8, 16, 33};
+  
+  private final Random random = new Random(0xBADC0FFEEL);
+  private final SolrParams emptySolrParams = new MapSolrParams(Collections.EMPTY_MAP);
+  
+  @Test
+  public void testPlainIdRouter() {
+    for (int shards : SHARD_COUNTS) {
+      checkSameSliceAsDocRouter(new PlainIdRouter(), shards, false);
+    }
+  }
+  
+  @Test
+  public void testCompositeIdRouterWithPlainIds() {
+    for (int shards : SHARD_COUNTS) {
+      checkSameSliceAsDocRouter(new CompositeIdRouter(), shards, false);
+    }
+  }
+  
+  @Test
+  public void testCompositeIdRouterWithCompositeIds() {
+    for (int shards : SHARD_COUNTS) {
+      checkSameSliceAsDocRouter(new CompositeIdRouter(), shards, true);
+    }
+  }
+  
+  private void checkSameSliceAsDocRouter(DocRouter router, int shards, boolean isCompositeId) {
+    DocCollection docCollection = createDocCollection(router, shards);
+    List<String> sliceNames = new ArrayList<String>();
+    for (Slice slice : new ZooKeeperInspector().getSortedSlices(docCollection.getSlices())) {
+      sliceNames.add(slice.getName());
+    }
+    SolrCloudPartitioner partitioner = new SolrCloudPartitioner();
+    partitioner.setDocCollection(docCollection, shards);
+    
+    for (int reducersPerShard : new int[] {1, 3}) {
+      int numPartitions = shards * reducersPerShard;
+      for (int i = 0; i < 10000; i++) {
+        String id = createId(i, isCompositeId);
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", id);
+        Slice expected = router.getTargetSlice(id, doc, emptySolrParams, docCollection);
+        
+        int partition = partitioner.getPartition(new Text(id), new SolrInputDocumentWritable(doc), numPartitions);
+        assertTrue(partition >= 0 && partition < numPartitions);
+        assertEquals(id, expected.getName(), sliceNames.get(partition / reducersPerShard));
+        
+        // the secondary sort suffix of a shuffle key must not affect the slice
+        Text sortKey = SolrMapper.createShuffleKey(id, "timestamp", random.nextLong());
+        assertEquals(partition, partitioner.getPartition(sortKey, new SolrInputDocumentWritable(doc), numPartitions));
+      }
+    }
+  }
+  
+  private String createId(int i, boolean isCompositeId) {
+    String id = "doc" + i + "-" + Long.toHexString(random.nextLong());
+    if (isCompositeId) {
+      switch (i % 3) {
+        case 0: return "user" + random.nextInt(100) + CompositeIdRouter.SEPARATOR + id;
+        case 1: return "user" + random.nextInt(100) + "/" + random.nextInt(17) + CompositeIdRouter.SEPARATOR + id;
+        default: return "tenant" + random.nextInt(10) + CompositeIdRouter.SEPARATOR + "user" + random.nextInt(100) 
+            + CompositeIdRouter.SEPARATOR + id;
+      }
+    }
+    return id;
+  }
+  
+  /** Returns a collection whose slices are named such that their name order differs from their hash range order */
+  private DocCollection createDocCollection(DocRouter router, int shards) {
+    List<DocRouter.Range> ranges = router.partitionRange(shards, router.fullRange());
+    List<Integer> shardIds = new ArrayList<Integer>();
+    for (int i = 0; i < shards; i++) {
+      shardIds.add(i + 1);
+    }
+    Collections.shuffle(shardIds, random);
+    Map<String, Slice> slices = new LinkedHashMap<String, Slice>();
+    for (int i = 0; i < shards; i++) {
+      String name = "shard" + shardIds.get(i);
+      Map<String, Object> props = new HashMap<String, Object>();
+      props.put(Slice.RANGE, ranges.get(i));
+      slices.put(name, new Slice(name, new HashMap<String, Replica>(), props));
+    }
+    return new DocCollection("collection1", slices, new HashMap<String, Object>(), router);
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mrunit.mapreduce.ReduceDriver;
+import org.apache.hadoop.mrunit.types.Pair;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.hadoop.dedup.RetainMostRecentUpdateConflictResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SolrCombinerTest extends Assert {
+
+  private ReduceDriver<Text, SolrInputDocumentWritable, Text, SolrInputDocumentWritable> combineDriver;
+  
+  @Before
+  public void setUp() {
+    combineDriver = ReduceDriver.newReduceDriver(new SolrCombiner());
+    combineDriver.getConfiguration().set(
+        SolrReducer.UPDATE_CONFLICT_RESOLVER, RetainMostRecentUpdateConflictResolver.class.getName());
+  }
+
+  @Test
+  public void testRetainsMostRecentVersion() throws IOException {
+    combineDriver.withInput(new Text("myid1"), Arrays.asList(
+        createDoc("myid1", 5, "v5"), createDoc("myid1", 7, "v7"), createDoc("myid1", 6, "v6")));
+    
+    List<Pair<Text, SolrInputDocumentWritable>> results = combineDriver.run();
+    assertEquals(1, results.size());
+    assertEquals(new Text("myid1"), results.get(0).getFirst());
+    SolrInputDocument doc = results.get(0).getSecond().getSolrInputDocument();
+    assertEquals("v7", doc.getFieldValue("text"));
+    assertEquals(2, combineDriver.getCounters().findCounter(
+        RetainMostRecentUpdateConflictResolver.COUNTER_GROUP, 
+        RetainMostRecentUpdateConflictResolver.OUTDATED_COUNTER_NAME).getValue());
+  }
+
+  @Test
+  public void testSingleVersionPassesThrough() throws IOException {
+    combineDriver.withInput(new Text("myid2"), Arrays.asList(createDoc("myid2", 3, "v3")));
+    
+    List<Pair<Text, SolrInputDocumentWritable>> results = combineDriver.run();
+    assertEquals(1, results.size());
+    assertEquals(new Text("myid2"), results.get(0).getFirst());
+    assertEquals("v3", results.get(0).getSecond().getSolrInputDocument().getFieldValue("text"));
+  }
+
+  @Test
+  public void testSecondarySortKeepsFullShuffleKey() throws IOException {
+    combineDriver.getConfiguration().set(SolrReducer.SECONDARY_SORT_FIELD_NAME, "file_last_modified");
+    Text key = new Text("myid3\u00008000000000000009"); // id + separator + encoded version
+    combineDriver.withInput(key, Arrays.asList(createDoc("myid3", 9, "v9"), createDoc("myid3", 9, "v9")));
+    
+    List<Pair<Text, SolrInputDocumentWritable>> results = combineDriver.run();
+    assertEquals(1, results.size());
+    assertEquals(key, results.get(0).getFirst());
+    assertEquals(1, combineDriver.getCounters().findCounter(
+        RetainMostRecentUpdateConflictResolver.COUNTER_GROUP, 
+        RetainMostRecentUpdateConflictResolver.DUPLICATES_COUNTER_NAME).getValue());
+  }
+
+  private SolrInputDocumentWritable createDoc(String id, long lastModified, String text) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", id);
+    doc.addField("file_last_modified", lastModified);
+    doc.addField("text", text);
+    return new SolrInputDocumentWritable(doc);
+  }
+  
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteStreams;
+
+public class SolrInputDocumentWritableTest extends Assert {
+
+  @Test
+  public void testRoundTripReusesInstances() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    SolrInputDocumentWritable writable = new SolrInputDocumentWritable();
+    for (int i = 0; i < 3; i++) {
+      writable.reset(createDoc(i)).write(out);
+    }
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    SolrInputDocumentWritable result = new SolrInputDocumentWritable();
+    for (int i = 0; i < 3; i++) {
+      result.readFields(in);
+      SolrInputDocument doc = result.getSolrInputDocument();
+      assertEquals("id" + i, doc.getFieldValue("id"));
+      assertEquals(Long.valueOf(i), doc.getFieldValue("file_last_modified"));
+      assertEquals(createText(i), doc.getFieldValue("text"));
+    }
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void testRecordsAreDecodableInAnyOrder() throws IOException {
+    // the shuffle sorts records, so each record must be self-contained
+    DataOutputBuffer[] outs = new DataOutputBuffer[3];
+    SolrInputDocumentWritable writable = new SolrInputDocumentWritable();
+    for (int i = 0; i < outs.length; i++) {
+      outs[i] = new DataOutputBuffer();
+      writable.reset(createDoc(i)).write(outs[i]);
+    }
+    
+    SolrInputDocumentWritable result = new SolrInputDocumentWritable();
+    for (int i = outs.length - 1; i >= 0; i--) {
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(outs[i].getData(), outs[i].getLength());
+      result.readFields(in);
+      assertEquals("id" + i, result.getSolrInputDocument().getFieldValue("id"));
+      assertEquals(Long.valueOf(i), result.getSolrInputDocument().getFieldValue("file_last_modified"));
+    }
+  }
+
+  @Test
+  public void testRoundTripFromPlainDataInput() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < 3; i++) {
+      new SolrInputDocumentWritable(createDoc(i)).write(out);
+    }
+    out.writeInt(42);
+    
+    ByteArrayDataInput in = ByteStreams.newDataInput(out.getData(), 0);
+    SolrInputDocumentWritable result = new SolrInputDocumentWritable();
+    for (int i = 0; i < 3; i++) {
+      result.readFields(in);
+      assertEquals("id" + i, result.getSolrInputDocument().getFieldValue("id"));
+      assertEquals(createText(i), result.getSolrInputDocument().getFieldValue("text"));
+    }
+    assertEquals(42, in.readInt());
+  }
+
+  private SolrInputDocument createDoc(int i) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "id" + i);
+    doc.addField("file_last_modified", Long.valueOf(i));
+    doc.addField("text", createText(i));
+    return doc;
+  }
+
+  private String createText(int i) {
+    StringBuilder buf = new StringBuilder();
+    for (int j = 0; j < 10000 * i; j++) { // exceed the internal buffer size
+      buf.append((char) ('a' + (j % 26)));
+    }
+    return buf.toString();
+  }
+
+}
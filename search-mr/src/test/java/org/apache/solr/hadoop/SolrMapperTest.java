@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SolrMapperTest extends Assert {
+
+  private static final String FIELD = "file_last_modified";
+  
+  @Test
+  public void testShuffleKeyByteOrderIsNumericOrder() {
+    long[] versions = new long[] {Long.MIN_VALUE, Long.MIN_VALUE + 1, -256, -255, -16, -1, 0, 1, 15, 16, 255, 256, 
+        Integer.MAX_VALUE, 1L + Integer.MAX_VALUE, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+    Text previous = SolrMapper.createShuffleKey("myid", FIELD, null); // documents lacking the field come first
+    for (long version : versions) {
+      Text key = SolrMapper.createShuffleKey("myid", FIELD, version);
+      assertEquals("myid\u0000".length() + 16, key.getLength());
+      assertTrue(version + ": " + key, previous.compareTo(key) < 0); // byte-wise, as in the shuffle sort
+      assertEquals(new Text("myid"), DocumentIdGroupingComparator.getDocumentId(key));
+      previous = key;
+    }
+    
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      long v1 = random.nextLong();
+      long v2 = random.nextInt(3) == 0 ? v1 : random.nextLong();
+      int expected = Long.valueOf(v1).compareTo(Long.valueOf(v2));
+      int actual = SolrMapper.createShuffleKey("id", FIELD, v1).compareTo(SolrMapper.createShuffleKey("id", FIELD, v2));
+      assertEquals(expected, Integer.signum(actual));
+    }
+  }
+  
+  @Test
+  public void testShuffleKeyValueTypes() {
+    Text key = SolrMapper.createShuffleKey("myid", FIELD, 5L);
+    assertEquals(key, SolrMapper.createShuffleKey("myid", FIELD, 5));
+    assertEquals(key, SolrMapper.createShuffleKey("myid", FIELD, "5"));
+    assertEquals(key, SolrMapper.createShuffleKey("myid", FIELD, new Date(5)));
+    assertEquals(SolrMapper.createShuffleKey("myid", FIELD, 1000L), 
+        SolrMapper.createShuffleKey("myid", FIELD, "1970-01-01T00:00:01Z"));
+    try {
+      SolrMapper.createShuffleKey("myid", FIELD, "foo");
+      fail();
+    } catch (IllegalArgumentException e) {
+      ; // expected
+    }
+    try {
+      SolrMapper.createShuffleKey("myid", FIELD, new Object());
+      fail();
+    } catch (IllegalArgumentException e) {
+      ; // expected
+    }
+    try {
+      SolrMapper.createShuffleKey("my\u0000id", FIELD, 5L);
+      fail();
+    } catch (IllegalArgumentException e) {
+      ; // expected
+    }
+  }
+  
+  @Test
+  public void testShuffleKeyIdOrderTakesPrecedence() {
+    // the id is followed by NUL, which sorts before any other char, so "id1" versions sort before "id10"
+    assertTrue(SolrMapper.createShuffleKey("id1", FIELD, Long.MAX_VALUE).compareTo(
+        SolrMapper.createShuffleKey("id10", FIELD, Long.MIN_VALUE)) < 0);
+    assertTrue(SolrMapper.createShuffleKey("id2", FIELD, Long.MIN_VALUE).compareTo(
+        SolrMapper.createShuffleKey("id10", FIELD, Long.MAX_VALUE)) > 0);
+  }
+
+  @Test
+  public void testDocumentIdPartitioner() {
+    DocumentIdPartitioner partitioner = new DocumentIdPartitioner();
+    HashPartitioner<Text, SolrInputDocumentWritable> hashPartitioner = new HashPartitioner();
+    Random random = new Random(0);
+    for (int numPartitions : new int[] {1, 2, 7, 64, 1000}) {
+      for (int i = 0; i < 1000; i++) {
+        String id = "id" + random.nextInt();
+        int partition = hashPartitioner.getPartition(new Text(id), null, numPartitions);
+        assertTrue(partition >= 0 && partition < numPartitions);
+        assertEquals(partition, partitioner.getPartition(new Text(id), null, numPartitions));
+        for (int j = 0; j < 3; j++) {
+          Text key = SolrMapper.createShuffleKey(id, FIELD, random.nextBoolean() ? null : random.nextLong());
+          assertEquals(partition, partitioner.getPartition(key, null, numPartitions));
+        }
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.apache.solr.store.hdfs.HdfsDirectory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.io.Files;
+
+public class TreeMergeOutputFormatTest extends Assert {
+
+  private static final int NUM_SHARDS = 5;
+  private static final int SEGMENTS_PER_SHARD = 4;
+  private static final int DOCS_PER_SEGMENT = 10;
+  
+  private File root;
+  private Set<String> expectedIds;
+  
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDir();
+    expectedIds = new HashSet<String>();
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      createShard(getShardDir("input", i), i);
+    }
+  }
+  
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(root);
+  }
+  
+  @Test
+  public void testBulkMergeMatchesForceMerge() throws IOException {
+    int maxSegments = 3;
+    Configuration conf = new Configuration();
+    conf.setInt(TreeMergeMapper.MAX_SEGMENTS_ON_TREE_MERGE, maxSegments);
+    conf.setInt(TreeMergeMapper.TREE_MERGE_THREADS, 4);
+    
+    conf.setBoolean(TreeMergeMapper.BULK_MERGE_ON_TREE_MERGE, false);
+    Path forceMerged = merge("forcemerge", conf);
+    conf.setBoolean(TreeMergeMapper.BULK_MERGE_ON_TREE_MERGE, true);
+    Path bulkMerged = merge("bulkmerge", conf);
+    
+    assertEquals(maxSegments, getSegmentCount(forceMerged, conf));
+    assertEquals(getSegmentCount(forceMerged, conf), getSegmentCount(bulkMerged, conf));
+    assertEquals(expectedIds, getIds(forceMerged, conf));
+    assertEquals(expectedIds, getIds(bulkMerged, conf));
+    
+    // the input shards are left intact without zero copy
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      assertEquals(SEGMENTS_PER_SHARD, getSegmentCount(getIndexDir("input", i), conf));
+    }
+  }
+  
+  @Test
+  public void testBulkMergeWithMoreSegmentsThanAvailable() throws IOException {
+    int maxSegments = NUM_SHARDS * SEGMENTS_PER_SHARD + 5;
+    Configuration conf = new Configuration();
+    conf.setInt(TreeMergeMapper.MAX_SEGMENTS_ON_TREE_MERGE, maxSegments);
+    Path bulkMerged = merge("bulkmerge", conf);
+    assertEquals(NUM_SHARDS * SEGMENTS_PER_SHARD, getSegmentCount(bulkMerged, conf));
+    assertEquals(expectedIds, getIds(bulkMerged, conf));
+  }
+  
+  @Test
+  public void testZeroCopyMergeCannotBeRetried() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt(TreeMergeMapper.MAX_SEGMENTS_ON_TREE_MERGE, 1);
+    conf.setBoolean(TreeMergeMapper.ZERO_COPY_TREE_MERGE, true);
+    conf.setBoolean(TreeMergeMapper.BULK_MERGE_ON_TREE_MERGE, false); // only the logical merge moves files
+    Path merged = merge("attempt0", conf);
+    assertEquals(1, getSegmentCount(merged, conf));
+    assertEquals(expectedIds, getIds(merged, conf));
+    
+    // the first attempt moved the segment files of its input shards, so a retry must fail fast 
+    try {
+      merge("attempt1", conf);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Cannot read input shard: "));
+      assertTrue(e.getMessage(), e.getMessage().contains(TreeMergeMapper.ZERO_COPY_TREE_MERGE));
+    }
+  }
+  
+  /** Runs a merge task on all input shards and returns the index dir of the merged shard */
+  private Path merge(String outputName, Configuration conf) throws IOException {
+    TaskAttemptContext context = Mockito.mock(TaskAttemptContext.class, Mockito.RETURNS_DEEP_STUBS);
+    Mockito.when(context.getConfiguration()).thenReturn(conf);
+    Path outputDir = getShardDir(outputName, 0);
+    TreeMergeOutputFormat.TreeMergeRecordWriter writer = new TreeMergeOutputFormat.TreeMergeRecordWriter(context, outputDir);
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      writer.write(new Text(getIndexDir("input", i).toString()), NullWritable.get());
+    }
+    writer.close(context);
+    return new Path(outputDir, "data/index");
+  }
+  
+  private Path getShardDir(String parent, int shard) {
+    return new Path(new File(root, parent).getPath(), String.format("part-m-%05d", shard));
+  }
+  
+  private Path getIndexDir(String parent, int shard) {
+    return new Path(getShardDir(parent, shard), "data/index");
+  }
+  
+  private void createShard(Path shardDir, int shard) throws IOException {
+    Directory dir = FSDirectory.open(new File(shardDir.toString(), "data/index"));
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_CURRENT, null);
+    config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+    IndexWriter writer = new IndexWriter(dir, config);
+    for (int i = 0; i < SEGMENTS_PER_SHARD; i++) {
+      for (int j = 0; j < DOCS_PER_SEGMENT; j++) {
+        String id = "id-" + shard + "-" + i + "-" + j;
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.YES));
+        doc.add(new StoredField("payload", "payload of " + id));
+        writer.addDocument(doc);
+        expectedIds.add(id);
+      }
+      writer.commit(); // one segment per commit
+    }
+    writer.close();
+    dir.close();
+  }
+  
+  private int getSegmentCount(Path indexDir, Configuration conf) throws IOException {
+    DirectoryReader reader = openReader(indexDir, conf);
+    try {
+      return reader.leaves().size();
+    } finally {
+      reader.close();
+    }
+  }
+  
+  private Set<String> getIds(Path indexDir, Configuration conf) throws IOException {
+    DirectoryReader reader = openReader(indexDir, conf);
+    try {
+      Set<String> ids = new HashSet<String>();
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        Document doc = reader.document(i);
+        assertEquals("payload of " + doc.get("id"), doc.get("payload"));
+        ids.add(doc.get("id"));
+      }
+      assertEquals(reader.numDocs(), ids.size());
+      return ids;
+    } finally {
+      reader.close();
+    }
+  }
+  
+  private DirectoryReader openReader(Path indexDir, Configuration conf) throws IOException {
+    return DirectoryReader.open(new HdfsDirectory(indexDir, conf));
+  }
+  
+}